@@ -0,0 +1,178 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**Microbenchmarks for tensor operations, cross-correlation, each layer type, the network trained by Main, and reading datasets.
+ * Prints time and allocation per operation for each, using MicroBenchmark.
+ * Usage: BenchmarkSuite [filter] [warmupMillis] [windowMillis] [windows], where only benchmarks whose names contain filter are run.*/
+public class BenchmarkSuite {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length > 0) MicroBenchmark.filter = args[0];
+        if(args.length > 1) MicroBenchmark.warmupMillis = Long.parseLong(args[1]);
+        if(args.length > 2) MicroBenchmark.windowMillis = Long.parseLong(args[2]);
+        if(args.length > 3) MicroBenchmark.windows = Integer.parseInt(args[3]);
+
+        tensors();
+        crossCorrelation();
+        layers();
+        network();
+        datasets();
+    }
+
+    private static void tensors(){
+        //The shape of the first convolution's output in Main
+        Tensor a = new Tensor(26, 26, 8).randomsSND();
+        Tensor b = new Tensor(26, 26, 8).randomsSND();
+
+        MicroBenchmark.run("Tensor.innerProduct 26x26x8", () -> a.innerProduct(b));
+        MicroBenchmark.run("Tensor.add 26x26x8", () -> a.add(b, 0.5).values[0]);
+        MicroBenchmark.run("Tensor.axpy 26x26x8", () -> {
+            a.axpy(1e-12, b);
+            return a.values[0];
+        });
+        MicroBenchmark.run("Tensor.getRegion 26x26x8 -> 13x13x8", () -> a.getRegion(new int[] {6, 6, 0}, new int[] {18, 18, 7}).values[0]);
+        MicroBenchmark.run("Tensor.flip 26x26x8", () -> a.flip().values[0]);
+    }
+
+    private static void crossCorrelation(){
+        int[][] inputSizes = {{28, 28}, {28, 28}, {64, 64}, {64, 64}};
+        int[][] filterSizes = {{3, 3}, {5, 5}, {3, 3}, {7, 7}};
+
+        for(int i = 0; i < inputSizes.length; i++){
+            Tensor input = new Tensor(inputSizes[i]).randomsSND();
+            Tensor filter = new Tensor(filterSizes[i]).randomsSND();
+            int[] ccMapSize = ArrayUtils.subtractAll(inputSizes[i], ArrayUtils.addAll(filterSizes[i], -1));
+
+            MicroBenchmark.run("crossCorrelationMap " + dims(inputSizes[i]) + " * " + dims(filterSizes[i]),
+                    () -> Layer_Convolutional.crossCorrelationMap(input, filter, ccMapSize, new int[0]).values[0]);
+        }
+    }
+
+    //Each layer at the shape it has in Main's network
+    private static void layers(){
+        layer("Layer_Convolutional 28x28 3x3x8", new Layer_Convolutional(new int[] {3, 3}, 8, new int[] {28, 28}), 28, 28);
+        layer("Layer_Convolutional 28x28 3x3x8 winograd", conv(new int[] {3, 3}, 8, ConvolutionAlgorithm.WINOGRAD, 28, 28), 28, 28);
+        //A second convolution, with filters summing across all 8 channels of the first one's output
+        layer("Layer_Convolutional 26x26x8 3x3x8x16", conv(new int[] {3, 3, 8}, 16, ConvolutionAlgorithm.DIRECT, 26, 26, 8), 26, 26, 8);
+        layer("Layer_Convolutional 26x26x8 3x3x8x16 winograd", conv(new int[] {3, 3, 8}, 16, ConvolutionAlgorithm.WINOGRAD, 26, 26, 8), 26, 26, 8);
+        layer("Layer_MaxPooling 26x26x8 2x2/2", new Layer_MaxPooling(new int[] {2, 2}, new int[] {2, 2}, new int[] {26, 26, 8}), 26, 26, 8);
+        layer("Layer_MaxPooling 26x26x8 3x3/2", new Layer_MaxPooling(new int[] {2, 2}, new int[] {3, 3}, new int[] {26, 26, 8}), 26, 26, 8);
+        layer("Layer_ReluACT 26x26x8", new Layer_ReluACT(new int[] {26, 26, 8}), 26, 26, 8);
+        layer("Layer_FullyConnected 13x13x8 -> 10", new Layer_FullyConnected(10, new int[] {13, 13, 8}), 13, 13, 8);
+        layer("Layer_SoftmaxACT 10", new Layer_SoftmaxACT(new int[] {10}), 10);
+    }
+
+    private static Layer_Convolutional conv(int[] filterDims, int depth, ConvolutionAlgorithm algorithm, int... inputDims){
+        Layer_Convolutional conv = new Layer_Convolutional(filterDims, depth, inputDims);
+        conv.setAlgorithm(algorithm);
+        return conv;
+    }
+
+    //Learning rate 0, so that repeated backprops do the same work without changing the layer
+    private static void layer(String name, Layer layer, int... inputDims){
+        Tensor input = new Tensor(inputDims).randomsSND();
+        Tensor outputGrad = new Tensor(layer.getOutputDims()).randomsSND();
+
+        MicroBenchmark.run(name + " forward", () -> layer.forwardProp(input).values[0]);
+        layer.forwardProp(input);
+        MicroBenchmark.run(name + " backward", () -> layer.backProp(outputGrad, 0).values[0]);
+        MicroBenchmark.run(name + " infer", () -> layer.infer(input).values[0]);
+    }
+
+    private static void network(){
+        Network net = HogwildBenchmark.mainNetwork();
+        Tensor[][] samples = HogwildBenchmark.syntheticDigits(32, new Random(52));
+        Tensor input = samples[0][0];
+        Tensor label = samples[1][0];
+        Trainer trainer = new Trainer(net, LossFunction.crossEntropy, samples[0], samples[1], 0, 0);
+
+        MicroBenchmark.run("Network (Main) forward", () -> net.forwardProp(input).values[0]);
+        MicroBenchmark.run("Network (Main) forward + backward", () -> trainer.train(input, label)[0]);
+        MicroBenchmark.run("Network (Main) infer", () -> net.infer(input).values[0]);
+
+        Tensor batch = Tensor.stack(samples[0]);
+        MicroBenchmark.run("Network (Main) forward batch of 32", () -> net.forwardPropBatch(batch).values[0]);
+
+        //Main's network with ReLU after the convolution, run with its layers fused and separately
+        for(boolean fusion : new boolean[] {true, false}){
+            Network reluNet = new Network(28, 28).addConv(new int[] {3, 3}, 8).addReLU().addMax(2, new int[] {2, 2}).addFull(10).addSoftmax().fuseSoftmaxCrossEntropy();
+            reluNet.setFusion(fusion);
+            Trainer reluTrainer = new Trainer(reluNet, LossFunction.crossEntropy, samples[0], samples[1], 0, 0);
+            String name = "Network (conv, ReLU, pool) " + (fusion ? "fused" : "separate");
+
+            MicroBenchmark.run(name + " forward", () -> reluNet.forwardProp(input).values[0]);
+            MicroBenchmark.run(name + " forward + backward", () -> reluTrainer.train(input, label)[0]);
+        }
+    }
+
+    private static void datasets() throws IOException {
+        int count = 10000;
+        File images = writeImages(count);
+        File labels = writeLabels(count);
+
+        MicroBenchmark.run("IdxReader.readGreyImages " + count + " images", () -> {
+            try {
+                return IdxReader.readGreyImages(images.getPath(), count)[count - 1].values[0];
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        MicroBenchmark.run("IdxFile open + decode " + count + " images", () -> {
+            try {
+                IdxFile file = new IdxFile(images.getPath());
+                double[] image = new double[file.getSampleLength()];
+                double sum = 0;
+                for(int i = 0; i < count; i++){
+                    file.decodeGreyImage(i, image);
+                    sum += image[0];
+                }
+                return sum;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        MicroBenchmark.run("ByteDataset.load " + count + " images", () -> {
+            try {
+                return ByteDataset.load(images.getPath(), labels.getPath()).size();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    //An IDX file of random 28x28 images, standing in for MNIST
+    private static File writeImages(int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(16 + count * 784);
+        bytes.putInt(0x00000803).putInt(count).putInt(28).putInt(28);
+        byte[] pixels = new byte[count * 784];
+        new Random(52).nextBytes(pixels);
+        bytes.put(pixels);
+
+        File file = File.createTempFile("images", ".idx3");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.array());
+        return file;
+    }
+
+    private static File writeLabels(int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(8 + count);
+        bytes.putInt(0x00000801).putInt(count);
+        for(int i = 0; i < count; i++) bytes.put((byte) (i % 10));
+
+        File file = File.createTempFile("labels", ".idx1");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.array());
+        return file;
+    }
+
+    private static String dims(int[] sizes){
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i < sizes.length; i++) s.append(i > 0 ? "x" : "").append(sizes[i]);
+        return s.toString();
+    }
+}
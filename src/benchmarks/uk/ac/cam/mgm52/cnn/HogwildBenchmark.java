@@ -0,0 +1,80 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Random;
+
+/**Compares the sequential Trainer against HogwildTrainer on the network used by Main.
+ * Reports training throughput and the accuracy each reaches on a held-out set.
+ * Usage: HogwildBenchmark [samples] [epochs] [workers]*/
+public class HogwildBenchmark {
+
+    public static void main(String[] args) {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Random rand = new Random(52);
+        Tensor[][] train = syntheticDigits(samples, rand);
+        Tensor[][] test = syntheticDigits(1000, rand);
+
+        Network sequentialNet = mainNetwork();
+        //Both trainers start from identical weights
+        Network hogwildNet = sequentialNet.replicate();
+
+        Trainer sequential = new Trainer(sequentialNet, LossFunction.crossEntropy, train[0], train[1], 0, 0.005);
+        Trainer hogwild = new HogwildTrainer(hogwildNet, LossFunction.crossEntropy, train[0], train[1], 0, 0.005, 1, workers);
+
+        report("Sequential Trainer", sequential, epochs, samples, test);
+        report("HogwildTrainer (" + workers + " workers)", hogwild, epochs, samples, test);
+    }
+
+    private static void report(String name, Trainer trainer, int epochs, int samples, Tensor[][] test){
+        long start = System.nanoTime();
+        for(int e = 0; e < epochs; e++) trainer.epoch();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int correct = 0;
+        for(int i = 0; i < test[0].length; i++){
+            Tensor output = trainer.network.forwardProp(test[0][i]);
+            if(output.maxValueIndex() == test[1][i].maxValueIndex()) correct++;
+        }
+
+        System.out.printf("%-32s %10.1f images/sec   test accuracy %5.1f%%%n", name, epochs * samples / seconds, 100.0 * correct / test[0].length);
+    }
+
+    //The architecture trained by Main, with softmax fused with cross entropy as Main does
+    static Network mainNetwork(){
+        Network net = new Network(28, 28);
+        net.addConv(new int[] {3, 3}, 8)
+                .addMax(2, new int[] {2, 2})
+                .addFull(10)
+                .addSoftmax()
+                .fuseSoftmaxCrossEntropy();
+        return net;
+    }
+
+    /**Generates a learnable stand-in for MNIST, so that benchmarks do not depend on the dataset being present.
+     * Each of the 10 classes is a bright 6x6 square at its own position, plus noise.
+     * @return {images, one-hot labels}
+     */
+    static Tensor[][] syntheticDigits(int count, Random rand){
+        Tensor[] images = new Tensor[count];
+        Tensor[] labels = new Tensor[count];
+
+        for(int i = 0; i < count; i++){
+            int label = rand.nextInt(10);
+            images[i] = new Tensor(28, 28);
+            labels[i] = new Tensor(10);
+            labels[i].values[label] = 1;
+
+            int x0 = 2 + (label % 5) * 5, y0 = 4 + (label / 5) * 12;
+            for(int y = 0; y < 28; y++){
+                for(int x = 0; x < 28; x++){
+                    boolean inSquare = x >= x0 && x < x0 + 6 && y >= y0 && y < y0 + 6;
+                    images[i].values[y * 28 + x] = (inSquare ? -0.5 : 0.5) + 0.2 * rand.nextGaussian();
+                }
+            }
+        }
+
+        return new Tensor[][] {images, labels};
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Load generator for InferenceServer. Serves the network used by Main, then has several client threads send predictions
+ * back to back for a fixed time. Reports the request rate and the server's latency and batch size statistics.
+ * Run with a max batch size of 1 to compare against unbatched serving.
+ * Usage: InferenceServerBenchmark [clients] [seconds] [maxBatchSize] [maxWaitMicros]*/
+public class InferenceServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long maxWaitMicros = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+
+        Tensor[] images = HogwildBenchmark.syntheticDigits(100, new Random(52))[0];
+        String[] bodies = new String[images.length];
+        for(int i = 0; i < images.length; i++){
+            StringBuilder body = new StringBuilder();
+            for(double v : images[i].values) body.append(v).append(',');
+            bodies[i] = body.toString();
+        }
+
+        try(InferenceServer server = new InferenceServer(HogwildBenchmark.mainNetwork(), 0, maxBatchSize, maxWaitMicros)){
+            URL url = new URL("http://localhost:" + server.getPort() + "/predict");
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            LongAdder completed = new LongAdder();
+            LongAdder failed = new LongAdder();
+
+            Thread[] threads = new Thread[clients];
+            for(int c = 0; c < clients; c++){
+                int client = c;
+                threads[c] = new Thread(() -> {
+                    for(int i = client; System.nanoTime() < end; i++){
+                        try {
+                            if(post(url, bodies[i % bodies.length]) == 200) completed.increment();
+                            else failed.increment();
+                        } catch (IOException e) {
+                            failed.increment();
+                        }
+                    }
+                }, "Client " + c);
+                threads[c].start();
+            }
+            for(Thread t : threads) t.join();
+
+            System.out.printf("%d clients, max batch %d, max wait %dus: %.1f predictions/sec, %d failed%n",
+                    clients, maxBatchSize, maxWaitMicros, completed.sum() / (double) seconds, failed.sum());
+            System.out.println(server.getStatsJson());
+        }
+    }
+
+    private static int post(URL url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try(OutputStream out = connection.getOutputStream()){
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int status = connection.getResponseCode();
+        try(InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()){
+            if(in != null) in.readAllBytes();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.function.DoubleSupplier;
+
+/**A small harness in the style of JMH, for use without a build tool.
+ * Each benchmark is run repeatedly for a warmup period, so that the JIT has compiled it, then timed over several measurement windows.
+ * Like JMH's GC profiler, it reports the bytes allocated per operation (from ThreadMXBean) and the GC time spent while measuring.
+ * Each operation returns a value derived from its result (e.g. one element of an output tensor), which is consumed so that the JIT
+ * cannot discard the work. Returning a primitive avoids boxing, which would otherwise show up as allocation.*/
+final class MicroBenchmark {
+
+    private MicroBenchmark(){}
+
+    //Warmup and measurement time per benchmark, and number of measurement windows
+    static long warmupMillis = 1000;
+    static long windowMillis = 500;
+    static int windows = 5;
+
+    //Only benchmarks whose names contain this are run
+    static String filter = "";
+
+    private static volatile int sink;
+
+    private static boolean headerPrinted = false;
+
+    /**Run a benchmark, printing its time and allocation per operation.
+     * @param op performs one operation and returns a value from its result, which is consumed*/
+    static void run(String name, DoubleSupplier op){
+        if(!name.contains(filter)) return;
+        if(!headerPrinted){
+            System.out.printf("%-48s %14s %12s %14s %10s%n", "Benchmark", "ns/op", "error", "B/op", "gc ms");
+            headerPrinted = true;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000;
+        while(System.nanoTime() < warmupEnd) consume(op.getAsDouble());
+
+        double[] nanosPerOp = new double[windows];
+        long totalOps = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long gcBefore = gcMillis();
+
+        for(int w = 0; w < windows; w++){
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + windowMillis * 1_000_000;
+            long now;
+            do {
+                consume(op.getAsDouble());
+                ops++;
+            } while((now = System.nanoTime()) < end);
+
+            nanosPerOp[w] = (now - start) / (double) ops;
+            totalOps += ops;
+        }
+
+        long bytesPerOp = (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / totalOps;
+        long gc = gcMillis() - gcBefore;
+
+        double mean = 0;
+        for(double n : nanosPerOp) mean += n / windows;
+        double variance = 0;
+        for(double n : nanosPerOp) variance += (n - mean) * (n - mean) / Math.max(1, windows - 1);
+
+        System.out.printf("%-48s %14.1f %12.1f %14d %10d%n", name, mean, Math.sqrt(variance), bytesPerOp, gc);
+    }
+
+    private static void consume(double result){
+        sink += (int) Double.doubleToRawLongBits(result);
+    }
+
+    private static long gcMillis(){
+        long total = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+}
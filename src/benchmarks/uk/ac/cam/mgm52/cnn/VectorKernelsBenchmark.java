@@ -0,0 +1,59 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Random;
+
+/**Compares the scalar kernels against VectorKernels.active on array lengths typical of this network's layers.
+ * To measure the SIMD kernels, compile src/simd onto the classpath and run with "--add-modules jdk.incubator.vector" on JDK 16+;
+ * otherwise both rows of each kernel measure the scalar kernels.
+ * Each kernel is timed by MicroBenchmark, so its time, allocation and GC time are reported as for BenchmarkSuite.
+ * Usage: VectorKernelsBenchmark [length] [filter] [warmupMillis] [windowMillis] [windows]*/
+public class VectorKernelsBenchmark {
+
+    private interface Kernel {
+        double run(VectorKernels kernels, double[] a, double[] b, double[] out);
+    }
+
+    public static void main(String[] args) {
+        //Defaults to the length of a 28x28 image
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 784;
+        if(args.length > 1) MicroBenchmark.filter = args[1];
+        if(args.length > 2) MicroBenchmark.warmupMillis = Long.parseLong(args[2]);
+        if(args.length > 3) MicroBenchmark.windowMillis = Long.parseLong(args[3]);
+        if(args.length > 4) MicroBenchmark.windows = Integer.parseInt(args[4]);
+
+        Random rand = new Random(52);
+        double[] a = new double[length], b = new double[length], out = new double[length];
+        for(int i = 0; i < length; i++){
+            a[i] = rand.nextGaussian();
+            b[i] = rand.nextGaussian();
+        }
+
+        System.out.printf("Active kernels: %s, length %d%n", VectorKernels.active.name(), length);
+
+        report("dot", (k, x, y, o) -> k.dot(x, 0, y, 0, x.length), a, b, out);
+        report("axpy", (k, x, y, o) -> {
+            k.axpy(1e-9, x, 0, o, 0, x.length);
+            return o[0];
+        }, a, b, out);
+        report("multiply", (k, x, y, o) -> {
+            k.multiply(x, y, o, x.length);
+            return o[0];
+        }, a, b, out);
+        report("maxIndex", (k, x, y, o) -> k.maxIndex(x, 0, x.length), a, b, out);
+        report("relu", (k, x, y, o) -> {
+            k.relu(x, o, x.length);
+            return o[0];
+        }, a, b, out);
+        report("reluGradients", (k, x, y, o) -> {
+            k.reluGradients(y, x, o, x.length);
+            return o[0];
+        }, a, b, out);
+        report("expSum", (k, x, y, o) -> k.expSum(x, o, 0, x.length), a, b, out);
+    }
+
+    //One row for the scalar kernel, then one for the active kernel
+    private static void report(String name, Kernel kernel, double[] a, double[] b, double[] out){
+        MicroBenchmark.run("VectorKernels." + name + " " + a.length + " scalar", () -> kernel.run(VectorKernels.scalar, a, b, out));
+        MicroBenchmark.run("VectorKernels." + name + " " + a.length + " active", () -> kernel.run(VectorKernels.active, a, b, out));
+    }
+}
@@ -3,7 +3,8 @@ package uk.ac.cam.mgm52.cnn;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -14,7 +15,7 @@ public final class ArrayUtils {
     private ArrayUtils(){}
 
     //Apply this binary operator between all items of arr and arr2. In the case of length discrepancy, elements from longer array are taken.
-    public static int[] applyAll(int[] arr, int[] arr2, BinaryOperator<Integer> op){
+    public static int[] applyAll(int[] arr, int[] arr2, IntBinaryOperator op){
         int[] max;
         int[] min;
 
@@ -31,8 +32,7 @@ public final class ArrayUtils {
 
         //Apply function
         for(int i = 0; i < min.length; i++){
-            //This cast from Integer -> int may be introducing overhead, I don't think it's significant though.
-            result[i] = op.apply(arr[i], arr2[i]);
+            result[i] = op.applyAsInt(arr[i], arr2[i]);
         }
 
         //Account for array length discrepancy by copyin over values from max
@@ -43,8 +43,8 @@ public final class ArrayUtils {
 
 
 
-    //Could avoid having to create two applyAll functions if I used objects instead of primitives,
-    public static double[] applyAll(double[] arr, double[] arr2, BinaryOperator<Double> op){
+    //Primitive operators are used rather than BinaryOperator, so that values are not boxed
+    public static double[] applyAll(double[] arr, double[] arr2, DoubleBinaryOperator op){
         double[] max;
         double[] min;
 
@@ -61,8 +61,7 @@ public final class ArrayUtils {
 
         //Apply function
         for(int i = 0; i < min.length; i++){
-            //This cast from Integer -> int may be introducing overhead, I don't think it's significant though.
-            result[i] = op.apply(arr[i], arr2[i]);
+            result[i] = op.applyAsDouble(arr[i], arr2[i]);
         }
 
         //Account for array length discrepancy
@@ -75,15 +74,33 @@ public final class ArrayUtils {
 
 
     public static int[] addAll(int[] arr, int[] arr2){return applyAll(arr, arr2, (a,b)->a+b);}
-    public static int[] addAll(int[] arr, int f) {return Arrays.stream(arr).map(a->a+f).toArray();}
+    public static int[] addAll(int[] arr, int f) {
+        int[] result = new int[arr.length];
+        for(int i = 0; i < arr.length; i++) result[i] = arr[i] + f;
+        return result;
+    }
     public static int[] subtractAll(int[] arr, int[] arr2){return applyAll(arr, arr2, (a,b)->a-b);}
     public static int[] divideAll(int[] arr, int[] arr2){return applyAll(arr, arr2, (a,b)->a/b);}
     public static int[] multAll(int[] arr, int[] arr2){return applyAll(arr, arr2, (a,b)->a*b);}
 
     public static double[] addAll(double[] arr, double[] arr2){return applyAll(arr, arr2, (a,b)->a+b);}
-    public static double[] multAll(double[] arr, double[] arr2){return applyAll(arr, arr2, (a,b)->a*b);}
-    public static double[] multAll(double[] arr, double f) {return Arrays.stream(arr).map(a->a*f).toArray();}
-    public static double[] divideAll(double[] arr, double f) {return Arrays.stream(arr).map(a->a/f).toArray();}
+    public static double[] multAll(double[] arr, double[] arr2){
+        if(arr.length != arr2.length) return applyAll(arr, arr2, (a,b)->a*b);
+
+        double[] result = new double[arr.length];
+        VectorKernels.active.multiply(arr, arr2, result, arr.length);
+        return result;
+    }
+    public static double[] multAll(double[] arr, double f) {
+        double[] result = new double[arr.length];
+        for(int i = 0; i < arr.length; i++) result[i] = arr[i] * f;
+        return result;
+    }
+    public static double[] divideAll(double[] arr, double f) {
+        double[] result = new double[arr.length];
+        for(int i = 0; i < arr.length; i++) result[i] = arr[i] / f;
+        return result;
+    }
 
 
 
@@ -95,6 +112,20 @@ public final class ArrayUtils {
         return newArray;
     }
 
+    /**Joins arrays end to end*/
+    public static int[] concat(int[]... arrays){
+        int length = 0;
+        for(int[] arr : arrays) length += arr.length;
+
+        int[] result = new int[length];
+        int position = 0;
+        for(int[] arr : arrays){
+            System.arraycopy(arr, 0, result, position, arr.length);
+            position += arr.length;
+        }
+        return result;
+    }
+
     public static <T> T[] appendValue(T[] arr, T val){
         T[] newArray = Arrays.copyOf(arr, arr.length+1);
         newArray[newArray.length - 1] = val;
@@ -108,20 +139,19 @@ public final class ArrayUtils {
     }
 
     public static int findIndexOfMax(double[] arr){
-        double max = arr[0];
-        int maxi = 0;
-
-        for(int i = 1; i < arr.length; i++) if(arr[i] > max) {max = arr[i]; maxi = i;}
-
-        return maxi;
+        return VectorKernels.active.maxIndex(arr, 0, arr.length);
     }
 
     public static int product(int[] arr){
-        return Arrays.stream(arr).reduce(1, (i, j) -> i * j);
+        int product = 1;
+        for(int a : arr) product *= a;
+        return product;
     }
 
     public static double sum(double[] arr){
-        return Arrays.stream(arr).reduce(0, Double::sum);
+        double sum = 0;
+        for(double a : arr) sum += a;
+        return sum;
     }
 
     public static int[] randomOrderInts(int min, int max){
@@ -0,0 +1,86 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**Greyscale images and their labels, held in memory as raw bytes: one contiguous array of pixels for the whole set, and one of labels.
+ * This is an eighth of the size of decoded tensors. Each image is normalized (as by IdxReader.readGreyImages) only when it is read,
+ * i.e. as it is fed to the network, and each label is one-hot encoded at the same time.*/
+public class ByteDataset implements Dataset {
+
+    private final byte[] pixels;
+    private final byte[] labels;
+
+    private final int[] imageDims;
+    private final int imageLength;
+    private final int classCount;
+
+    /**@param pixels every image, one after another, each in Horner order
+     * @param labels label of each image, from 0 to classCount - 1
+     */
+    public ByteDataset(byte[] pixels, byte[] labels, int[] imageDims, int classCount){
+        this.pixels = pixels;
+        this.labels = labels;
+        this.imageDims = imageDims;
+        this.classCount = classCount;
+        imageLength = ArrayUtils.product(imageDims);
+
+        if((long) labels.length * imageLength != pixels.length) throw new IllegalArgumentException(pixels.length + " pixels do not make " + labels.length + " images of " + imageLength + " pixels");
+    }
+
+    /**Copy the first limit images and labels of a pair of IDX files into memory.*/
+    public static ByteDataset load(String imagePath, String labelPath, int limit) throws IOException {
+        TrainingEvents.DatasetLoad event = new TrainingEvents.DatasetLoad();
+        event.begin();
+
+        IdxFile images = new IdxFile(imagePath);
+        IdxFile labelFile = new IdxFile(labelPath);
+        if(images.getType() != IdxFile.UNSIGNED_BYTE || labelFile.getType() != IdxFile.UNSIGNED_BYTE) throw new IOException("Images and labels must be stored as unsigned bytes");
+
+        int count = Math.min(limit, Math.min(images.size(), labelFile.size()));
+        byte[] pixels = new byte[count * images.getSampleLength()];
+        byte[] labels = new byte[count];
+        images.copyBytes(0, count, pixels, 0);
+        labelFile.copyBytes(0, count, labels, 0);
+
+        //Labels are assumed to be 0 to n-1
+        int maxLabel = 0;
+        for(byte label : labels) maxLabel = Math.max(maxLabel, label & 0xFF);
+
+        event.finish(imagePath, count, pixels.length + labels.length);
+        return new ByteDataset(pixels, labels, images.getSampleDims(), maxLabel + 1);
+    }
+
+    public static ByteDataset load(String imagePath, String labelPath) throws IOException {
+        return load(imagePath, labelPath, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int size() {
+        return labels.length;
+    }
+
+    @Override
+    public int[] getInputDims() {
+        return imageDims;
+    }
+
+    @Override
+    public int[] getLabelDims() {
+        return new int[] {classCount};
+    }
+
+    @Override
+    public void readInput(int index, double[] dest, int offset) {
+        int start = index * imageLength;
+        for(int p = 0; p < imageLength; p++){
+            dest[offset + p] = IdxFile.normalizeGrey(pixels[start + p]);
+        }
+    }
+
+    @Override
+    public void readLabel(int index, double[] dest, int offset) {
+        Arrays.fill(dest, offset, offset + classCount, 0);
+        dest[offset + (labels[index] & 0xFF)] = 1;
+    }
+}
@@ -0,0 +1,208 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**Saves and loads networks in a compact binary format.
+ * The file begins with a header describing the layer stack, followed by one raw block of doubles per parameter tensor.
+ * Every block starts on a 64-byte boundary and is stored little-endian, so loading maps the file and copies each block straight into its tensor.
+ * Parameters are stored exactly, so a network round-trips bit for bit.
+ *
+ * Header layout (all ints are 4 bytes, little-endian):
+ * magic, version, input rank, input dims..., layer count, then for each layer its type followed by:
+ * conv: rank, filter dims..., depth | max pooling: rank, strides..., sizes... | fully connected: output length | ReLU and softmax: nothing.
+ * Then the parameter count, followed by the offset (8 bytes) and length of each parameter block.*/
+final class Checkpoint {
+
+    private Checkpoint(){}
+
+    //"JCNN" in ASCII
+    private static final int MAGIC = 0x4A434E4E;
+    private static final int VERSION = 2;
+    private static final int ALIGNMENT = 64;
+
+    private static final int CONV = 1;
+    private static final int MAX_POOLING = 2;
+    private static final int FULLY_CONNECTED = 3;
+    private static final int RELU = 4;
+    private static final int SOFTMAX = 5;
+
+    /**Write a network, including all of its parameters, to path.*/
+    static void save(Network net, String path) throws IOException {
+        int[] header = header(net);
+        Tensor[] parameters = net.getParameters();
+
+        //Header ints, the parameter count, then an offset and length per parameter, rounded up to the first block
+        long headerBytes = 4L * header.length + 4 + 12L * parameters.length;
+        long[] offsets = new long[parameters.length];
+        long end = align(headerBytes);
+        for(int p = 0; p < parameters.length; p++){
+            offsets[p] = end;
+            end = align(end + 8L * parameters[p].values.length);
+        }
+
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, end);
+            file.order(ByteOrder.LITTLE_ENDIAN);
+
+            for(int value : header) file.putInt(value);
+            file.putInt(parameters.length);
+            for(int p = 0; p < parameters.length; p++){
+                file.putLong(offsets[p]);
+                file.putInt(parameters[p].values.length);
+            }
+
+            for(int p = 0; p < parameters.length; p++){
+                file.position((int) offsets[p]);
+                file.asDoubleBuffer().put(parameters[p].values);
+            }
+
+            file.force();
+        }
+    }
+
+    /**Read a network saved by save. Its layers are rebuilt from the header, then each parameter block is copied from the mapped file.*/
+    static Network load(String path) throws IOException {
+        MappedByteBuffer file;
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(file.limit() < 8 || file.getInt() != MAGIC) throw new IOException(path + " is not a network checkpoint");
+        int version = file.getInt();
+        if(version != VERSION) throw new IOException(path + " has unsupported checkpoint version " + version);
+
+        int inputRank = readInt(file, path);
+        if(inputRank < 1) throw new IOException(path + " has an input rank of " + inputRank);
+        int[] inputDims = readSizes(file, inputRank, path);
+        if(volume(inputDims) > Integer.MAX_VALUE) throw new IOException(path + " has an input too large for a tensor");
+        Network net = new Network(inputDims);
+
+        int layerCount = readInt(file, path);
+        if(layerCount < 0 || layerCount > file.remaining() / 4) throw new IOException(path + " is shorter than its header");
+        for(int l = 0; l < layerCount; l++){
+            int type = readInt(file, path);
+            int[] inputDimsOfLayer = net.getOutputDims();
+            switch(type){
+                case CONV: {
+                    int[] filterDims = readSizes(file, readInt(file, path), path);
+                    int depth = readInt(file, path);
+                    //Filters larger than their input, or with more weights than the file could hold, can only come from a corrupt header
+                    if(depth < 1 || !fits(filterDims, inputDimsOfLayer) || 8.0 * volume(filterDims) * depth > file.limit()){
+                        throw new IOException(path + " has a convolutional layer that does not fit its input");
+                    }
+                    net.addConv(filterDims, depth);
+                    break;
+                }
+                case MAX_POOLING: {
+                    int rank = readInt(file, path);
+                    int[] strides = readSizes(file, rank, path);
+                    int[] sizes = readSizes(file, rank, path);
+                    if(!fits(sizes, inputDimsOfLayer)) throw new IOException(path + " has a max pooling layer that does not fit its input");
+                    net.addLayer(new Layer_MaxPooling(strides, sizes, inputDimsOfLayer));
+                    break;
+                }
+                case FULLY_CONNECTED: {
+                    int outputLength = readInt(file, path);
+                    if(outputLength < 1 || 8.0 * outputLength * volume(inputDimsOfLayer) > file.limit()){
+                        throw new IOException(path + " has a fully connected layer of impossible size");
+                    }
+                    net.addFull(outputLength);
+                    break;
+                }
+                case RELU: net.addReLU(); break;
+                case SOFTMAX: net.addSoftmax(); break;
+                default: throw new IOException(path + " contains unknown layer type " + type);
+            }
+        }
+
+        Tensor[] parameters = net.getParameters();
+        if(readInt(file, path) != parameters.length) throw new IOException(path + " does not have one parameter block per parameter tensor");
+
+        long[] offsets = new long[parameters.length];
+        for(int p = 0; p < parameters.length; p++){
+            if(file.remaining() < 12) throw new IOException(path + " is shorter than its header");
+            offsets[p] = file.getLong();
+            if(file.getInt() != parameters[p].values.length) throw new IOException(path + " has a parameter block of the wrong size");
+            //Checked before any block is copied, so a truncated file never leaves a half-loaded network
+            if(offsets[p] < 0 || offsets[p] + 8L * parameters[p].values.length > file.limit()){
+                throw new IOException(path + " is truncated: a parameter block ends past the end of the file");
+            }
+        }
+
+        for(int p = 0; p < parameters.length; p++){
+            file.position((int) offsets[p]);
+            file.asDoubleBuffer().get(parameters[p].values);
+            parameters[p].markModified();
+        }
+
+        return net;
+    }
+
+    //Everything before the parameter count
+    private static int[] header(Network net){
+        int[] header = {MAGIC, VERSION};
+
+        int[] inputDims = net.getInputDims();
+        header = ArrayUtils.concat(header, new int[] {inputDims.length}, inputDims, new int[] {net.layers.length});
+
+        for(Layer l : net.layers){
+            if(l instanceof Layer_Convolutional){
+                Layer_Convolutional conv = (Layer_Convolutional) l;
+                header = ArrayUtils.concat(header, new int[] {CONV, conv.filterDimSizes.length}, conv.filterDimSizes, new int[] {conv.getDepth()});
+            }
+            else if(l instanceof Layer_MaxPooling){
+                Layer_MaxPooling max = (Layer_MaxPooling) l;
+                header = ArrayUtils.concat(header, new int[] {MAX_POOLING, max.strides.length}, max.strides, max.sizes);
+            }
+            else if(l instanceof Layer_FullyConnected){
+                header = ArrayUtils.concat(header, new int[] {FULLY_CONNECTED, ((Layer_FullyConnected) l).biases.length});
+            }
+            else if(l instanceof Layer_ReluACT) header = ArrayUtils.concat(header, new int[] {RELU});
+            //Including Layer_SoftmaxCrossEntropy, which only differs in backprop. A loaded network is fused again with fuseSoftmaxCrossEntropy.
+            else if(l instanceof Layer_SoftmaxACT) header = ArrayUtils.concat(header, new int[] {SOFTMAX});
+            else throw new IllegalArgumentException("Checkpoints do not support " + l.getClass().getSimpleName());
+        }
+
+        return header;
+    }
+
+    private static int readInt(MappedByteBuffer file, String path) throws IOException {
+        if(file.remaining() < 4) throw new IOException(path + " is shorter than its header");
+        return file.getInt();
+    }
+
+    //Reads count dims, strides or window sizes, all of which must be positive
+    private static int[] readSizes(MappedByteBuffer file, int count, String path) throws IOException {
+        if(count < 0 || count > file.remaining() / 4) throw new IOException(path + " is shorter than its header");
+        int[] values = new int[count];
+        for(int i = 0; i < count; i++){
+            values[i] = file.getInt();
+            if(values[i] < 1) throw new IOException(path + " has a non-positive size in its header");
+        }
+        return values;
+    }
+
+    //Whether a filter or pooling window of the given sizes fits inside an input of the given dims
+    private static boolean fits(int[] sizes, int[] inputDims){
+        if(sizes.length > inputDims.length) return false;
+        for(int i = 0; i < sizes.length; i++) if(sizes[i] > inputDims[i]) return false;
+        return true;
+    }
+
+    //Product of dims in floating point, so that a corrupt header cannot overflow it
+    private static double volume(int[] dims){
+        double volume = 1;
+        for(int d : dims) volume *= d;
+        return volume;
+    }
+
+    private static long align(long position){
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,11 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**Algorithm used by a convolutional layer to apply its filters and find its input gradients. Filter gradients always use DIRECT.*/
+public enum ConvolutionAlgorithm {
+    /**Inputs are lowered into patch matrices, then all filters are applied with one matrix multiply. Works for any filter shape.*/
+    DIRECT,
+    /**Winograd's F(2x2, 3x3) minimal filtering, needing 16 multiplies for every 2x2 tile of output rather than 36.
+     * Only for 3x3 filters over inputs of rank 2 or 3. Results differ from DIRECT only by rounding.
+     * Pays off for inputs with several channels; for a single channel, transforming the tiles costs more than the multiplies saved.*/
+    WINOGRAD
+}
@@ -0,0 +1,138 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Arrays;
+
+/**Performs cross-correlation by lowering the input into a patch matrix (im2col), then applying every filter at once with a single matrix multiply.
+ * The index arithmetic is worked out once per layer, as input and filter shapes are fixed.*/
+class ConvolutionEngine {
+
+    //Number of elements in one filter, i.e. rows of the patch matrix
+    final int kernelSize;
+    //Number of positions the filter is applied at, i.e. columns of the patch matrix
+    final int patchCount;
+
+    //Flat index (within the input) of the first element of each patch
+    private final int[] patchOffsets;
+    //Flat index of each filter element, relative to the first element of a patch
+    private final int[] kernelOffsets;
+
+    /**@param inputDims size of each dimension of the input
+     * @param filterDims size of each dimension of a single filter. Must have the same rank as inputDims.
+     * @param ccMapSize size of the cross-correlation map produced by one filter
+     */
+    ConvolutionEngine(int[] inputDims, int[] filterDims, int[] ccMapSize){
+        //Distance between consecutive elements of each dimension in the input's values array
+        int[] inputStrides = HornerConversion.strides(inputDims);
+
+        patchOffsets = CoordUtils.flatOffsets(ccMapSize, inputStrides);
+        kernelOffsets = CoordUtils.flatOffsets(filterDims, inputStrides);
+
+        patchCount = patchOffsets.length;
+        kernelSize = kernelOffsets.length;
+    }
+
+    /**Lower an input into a (kernelSize x patchCount) matrix, where column p holds every value covered by the filter at position p.*/
+    double[] lower(double[] input){
+        return lower(input, 1);
+    }
+
+    /**Lower each sample of a batch into its own (kernelSize x patchCount) matrix. Samples are stored one after another.*/
+    double[] lower(double[] inputs, int batchSize){
+        double[] patches = new double[batchSize * kernelSize * patchCount];
+        lower(inputs, batchSize, patches);
+        return patches;
+    }
+
+    /**As lower, but writing into patches, which must hold at least batchSize * kernelSize * patchCount values.*/
+    void lower(double[] inputs, int batchSize, double[] patches){
+        int inputSize = inputs.length / batchSize;
+
+        for(int n = 0; n < batchSize; n++){
+            int inputOffset = n * inputSize;
+            int sampleOffset = n * kernelSize * patchCount;
+
+            for(int k = 0; k < kernelSize; k++){
+                int kernelOffset = inputOffset + kernelOffsets[k];
+                int row = sampleOffset + k * patchCount;
+
+                for(int p = 0; p < patchCount; p++){
+                    patches[row + p] = inputs[patchOffsets[p] + kernelOffset];
+                }
+            }
+        }
+    }
+
+    /**Apply every filter to a lowered input.
+     * @param filters (depth x kernelSize) values, i.e. each filter stored contiguously
+     * @return (depth x patchCount) values, i.e. each cross-correlation map stored contiguously
+     */
+    double[] forward(double[] patches, double[] filters, int depth){
+        return forward(patches, filters, depth, 1);
+    }
+
+    /**Apply every filter to each sample of a lowered batch. The output of each sample is stored one after another.*/
+    double[] forward(double[] patches, double[] filters, int depth, int batchSize){
+        double[] output = new double[batchSize * depth * patchCount];
+        forward(patches, filters, depth, batchSize, output);
+        return output;
+    }
+
+    /**As forward, but writing into output, which is overwritten.*/
+    void forward(double[] patches, double[] filters, int depth, int batchSize, double[] output){
+        Arrays.fill(output, 0, batchSize * depth * patchCount, 0);
+
+        //The filters are shared by every sample, so stay in cache across the whole batch
+        for(int n = 0; n < batchSize; n++){
+            MatrixUtils.gemm(filters, 0, patches, n * kernelSize * patchCount, output, n * depth * patchCount, depth, patchCount, kernelSize);
+        }
+    }
+
+    /**Calculate the derivative of loss wrt each filter value.
+     * @param outputGrad (depth x patchCount) derivative of loss wrt each output
+     * @return (depth x kernelSize) values, laid out the same as the filters
+     */
+    double[] filterGradients(double[] patches, double[] outputGrad, int depth){
+        return filterGradients(patches, outputGrad, depth, 1);
+    }
+
+    /**Calculate the derivative of loss wrt each filter value, summed across every sample of a lowered batch.*/
+    double[] filterGradients(double[] patches, double[] outputGrads, int depth, int batchSize){
+        double[] filterGrads = new double[depth * kernelSize];
+        filterGradients(patches, outputGrads, depth, batchSize, filterGrads);
+        return filterGrads;
+    }
+
+    /**As filterGradients, but writing into filterGrads, which is overwritten.*/
+    void filterGradients(double[] patches, double[] outputGrads, int depth, int batchSize, double[] filterGrads){
+        Arrays.fill(filterGrads, 0, depth * kernelSize, 0);
+
+        for(int n = 0; n < batchSize; n++){
+            MatrixUtils.gemmTransposeB(outputGrads, n * depth * patchCount, patches, n * kernelSize * patchCount, filterGrads, 0, depth, kernelSize, patchCount);
+        }
+    }
+
+    /**Calculate the derivative of loss wrt each input value, for every sample of a batch.
+     * Patch grads (kernelSize x patchCount) = filters^T * output grads, which are then added back onto the input positions each patch was lowered from (col2im).
+     * @param patchGrads scratch space holding at least kernelSize * patchCount values
+     * @param inputGrads overwritten with the derivative wrt each input, with samples stored one after another
+     */
+    void inputGradients(double[] filters, double[] outputGrads, int depth, int batchSize, double[] patchGrads, double[] inputGrads){
+        Arrays.fill(inputGrads, 0);
+        int inputSize = inputGrads.length / batchSize;
+
+        for(int n = 0; n < batchSize; n++){
+            Arrays.fill(patchGrads, 0, kernelSize * patchCount, 0);
+            MatrixUtils.gemmTransposeA(filters, 0, outputGrads, n * depth * patchCount, patchGrads, 0, kernelSize, patchCount, depth);
+
+            //Inverse of lower. Patches overlap, so their grads accumulate.
+            for(int k = 0; k < kernelSize; k++){
+                int kernelOffset = n * inputSize + kernelOffsets[k];
+                int row = k * patchCount;
+
+                for(int p = 0; p < patchCount; p++){
+                    inputGrads[patchOffsets[p] + kernelOffset] += patchGrads[row + p];
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package uk.ac.cam.mgm52.cnn;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**To assist in operating on coordinates*/
 class CoordUtils {
@@ -81,46 +82,123 @@ class CoordUtils {
 
 
 
-    /**Iterates through a set of coordinates within a region, with a certain stride.*/
-    public static class StridingCoordIterator implements CoordIterInterface {
-        int[] strides;
-        int[] corner1;
+    /**Iterates through a set of coordinates within a region, with a certain stride, without allocating.
+     * A single coords array is mutated in place, so the array returned by next() (and getCurrentCoords()) is only valid until the cursor next moves.
+     * The cursor also keeps track of the flat index of the current coords within a tensor, which is updated with one addition per step.*/
+    public static class CoordCursor implements CoordIterInterface {
+        private final int[] startCoords;
+        private final int[] steps;
+        //Number of positions visited in each dimension
+        private final int[] positionCounts;
 
-        CoordIterator coordIter;
+        private final int[] positions;
+        private final int[] currentCoords;
 
-        @Override
-        public int getCurrentCount() {
-            return coordIter.getCurrentCount();
+        private final int[] tensorStrides;
+        //Change in flat index when moving one step along each dimension
+        private final int[] flatSteps;
+        private int flatIndex;
+
+        private int currentCount = 0;
+        private final int finalCount;
+
+        /**@param corner1 one corner of the region. The region includes both corners.
+         * @param steps distance moved along each dimension at each step
+         * @param tensorStrides strides of the tensor the coordinates index into, used to track the flat index
+         */
+        CoordCursor(int[] corner1, int[] corner2, int[] steps, int[] tensorStrides){
+            int rank = corner1.length;
+            startCoords = new int[rank];
+            this.steps = steps;
+            this.tensorStrides = tensorStrides;
+            positionCounts = new int[rank];
+            positions = new int[rank];
+            currentCoords = new int[rank];
+            flatSteps = new int[rank];
+
+            int count = 1;
+            for(int d = 0; d < rank; d++){
+                startCoords[d] = Math.min(corner1[d], corner2[d]);
+                positionCounts[d] = Math.abs(corner2[d] - corner1[d]) / steps[d] + 1;
+                flatSteps[d] = steps[d] * tensorStrides[d];
+                count *= positionCounts[d];
+            }
+            finalCount = count;
         }
 
-        private int[] currentCoords;
-        @Override
-        public int[] getCurrentCoords(){
-            return currentCoords;
+        /**Iterates with a step of 1 in every dimension.*/
+        CoordCursor(int[] corner1, int[] corner2, int[] tensorStrides){
+            this(corner1, corner2, ArrayUtils.addAll(new int[corner1.length], 1), tensorStrides);
+        }
+
+        /**Move to the next coordinate.
+         * @return false if there were no more coordinates
+         */
+        public boolean advance(){
+            if(currentCount >= finalCount) return false;
+
+            if(currentCount++ == 0){
+                flatIndex = 0;
+                for(int d = 0; d < currentCoords.length; d++){
+                    currentCoords[d] = startCoords[d];
+                    flatIndex += startCoords[d] * tensorStrides[d];
+                }
+                return true;
+            }
+
+            //This works like a simple counter. It increments the leftmost non-maximal position, setting any maximal positions back to the start.
+            for(int d = 0; d < currentCoords.length; d++){
+                if(++positions[d] < positionCounts[d]){
+                    currentCoords[d] += steps[d];
+                    flatIndex += flatSteps[d];
+                    return true;
+                }
+                flatIndex -= (positionCounts[d] - 1) * flatSteps[d];
+                currentCoords[d] = startCoords[d];
+                positions[d] = 0;
+            }
+            return true;
         }
 
-        StridingCoordIterator(int[] corner1, int[] corner2, int[] strides){
-            this.corner1 = corner1;
-            this.strides = strides;
+        /**Flat index of the current coords within the tensor whose strides were given. May be out of range if the coords are.*/
+        public int getFlatIndex(){
+            return flatIndex;
+        }
 
-            int[] cornerDifference = ArrayUtils.subtractAll(corner2, corner1);
-            int[] adjustedDifference = ArrayUtils.divideAll(cornerDifference, strides);
+        @Override
+        public int getCurrentCount() {
+            return currentCount;
+        }
 
-            coordIter = new CoordIterator(new int[corner1.length], adjustedDifference);
+        @Override
+        public int[] getCurrentCoords() {
+            return currentCoords;
         }
 
         @Override
         public boolean hasNext() {
-            return coordIter.hasNext();
+            return currentCount < finalCount;
         }
 
         @Override
         public int[] next() {
-            currentCoords = ArrayUtils.addAll(ArrayUtils.multAll(coordIter.next(), strides), corner1);
+            if(!advance()) throw new NoSuchElementException("Tried to access coordinate beyond region boundary");
             return currentCoords;
         }
     }
 
+    /**Flat offsets of every coordinate within a region of the given size, relative to its first coordinate, listed in Horner order.
+     * @param strides strides of the tensor the region lies within
+     */
+    static int[] flatOffsets(int[] regionSizes, int[] strides){
+        int[] offsets = new int[ArrayUtils.product(regionSizes)];
+        CoordCursor cursor = new CoordCursor(new int[regionSizes.length], ArrayUtils.addAll(regionSizes, -1), strides);
 
+        for(int i = 0; cursor.advance(); i++){
+            offsets[i] = cursor.getFlatIndex();
+        }
+
+        return offsets;
+    }
 
 }
@@ -0,0 +1,123 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**Trains a network with synchronous data parallelism across CPU cores.
+ * Each mini-batch is split into one shard per worker. Every worker owns a replica of the network, computes an update from its shard,
+ * and the updates of all replicas are then reduced into the master network's weights before the next batch begins.*/
+public class DataParallelTrainer extends Trainer {
+
+    private Network[] replicas;
+
+    private ExecutorService workers;
+
+    /**@param workerCount number of worker threads, each owning one replica of the network*/
+    DataParallelTrainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate, int batchSize, int workerCount){
+        super(network, lossFun, inputs, labels, talkInterval, learningRate, batchSize);
+
+        replicas = new Network[workerCount];
+        for(int r = 0; r < workerCount; r++){
+            replicas[r] = network.replicate();
+        }
+
+        //Daemon threads, so that an unfinished trainer does not keep the program alive
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread t = new Thread(runnable, "DataParallelTrainer worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    DataParallelTrainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate, int batchSize){
+        this(network, lossFun, inputs, labels, talkInterval, learningRate, batchSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    double[][] trainBatch(DataPipeline.Batch batch, double[] recentLosses){
+        double[][] recentOutputs = new double[batch.size][];
+        Tensor[] masterParams = network.getParameters();
+
+        int shardSize = (batch.size + replicas.length - 1) / replicas.length;
+        int shardCount = (batch.size + shardSize - 1) / shardSize;
+
+        //Each replica starts from the master weights and takes one step on its shard.
+        //Its learning rate is scaled by its share of the batch, so the summed steps equal one step on the mean gradient of the whole batch.
+        List<Future<?>> steps = new ArrayList<>();
+        for(int r = 0; r < shardCount; r++){
+            Network replica = replicas[r];
+            int from = r * shardSize;
+            int to = Math.min(from + shardSize, batch.size);
+            double shardLearningRate = learningRate * (to - from) / batch.size;
+
+            steps.add(workers.submit(() -> {
+                copyValues(masterParams, replica.getParameters());
+                Tensor shardInputs = Tensor.stack(Arrays.copyOfRange(batch.inputs, from, to));
+                trainBatch(replica, shardInputs, batch.labels, from, to, shardLearningRate, recentOutputs, recentLosses);
+            }));
+        }
+        await(steps);
+
+        //Reduce every replica's update into the master weights. Each worker reduces a contiguous slice of every parameter tensor.
+        Tensor[][] replicaParams = new Tensor[shardCount][];
+        for(int r = 0; r < shardCount; r++){
+            replicaParams[r] = replicas[r].getParameters();
+        }
+
+        List<Future<?>> reductions = new ArrayList<>();
+        for(int w = 0; w < replicas.length; w++){
+            int worker = w;
+
+            reductions.add(workers.submit(() -> {
+                for(int p = 0; p < masterParams.length; p++){
+                    double[] master = masterParams[p].values;
+                    int sliceLength = (master.length + replicas.length - 1) / replicas.length;
+                    int end = Math.min((worker + 1) * sliceLength, master.length);
+
+                    for(int i = worker * sliceLength; i < end; i++){
+                        double start = master[i];
+                        double sum = start;
+                        for(Tensor[] params : replicaParams){
+                            sum += params[p].values[i] - start;
+                        }
+                        master[i] = sum;
+                    }
+                }
+            }));
+        }
+        await(reductions);
+
+        for(Tensor param : masterParams) param.markModified();
+
+        return recentOutputs;
+    }
+
+    /**Stops the worker threads. The trainer cannot be used afterwards.*/
+    void shutdown(){
+        workers.shutdown();
+    }
+
+    //Copy the values of each tensor in from into the corresponding tensor in to
+    private static void copyValues(Tensor[] from, Tensor[] to){
+        for(int p = 0; p < from.length; p++){
+            from[p].copyInto(to[p]);
+        }
+    }
+
+    //Wait for every task to complete, rethrowing the first failure
+    private static void await(List<Future<?>> tasks){
+        try {
+            for(Future<?> task : tasks) task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for workers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
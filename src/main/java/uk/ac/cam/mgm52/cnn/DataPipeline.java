@@ -0,0 +1,174 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**Prepares one epoch of batches on background threads, ahead of the training loop.
+ * Producer threads shuffle the dataset, read and decode each sample, and stack each batch, placing finished batches in a bounded queue.
+ * This overlaps reading and preprocessing with training, and only the batches in flight are ever held in memory.
+ * Batches are recycled: once a batch has been used, it should be handed back with recycle so that its buffers can be refilled.
+ * Batches may arrive in a different order from one run to the next, as producers finish them out of order.*/
+public class DataPipeline implements AutoCloseable {
+
+    /**A batch of samples, with buffers that are reused by later batches.*/
+    public static class Batch {
+        /**Each sample's input and label. Only the first size entries belong to this batch.*/
+        public final Tensor[] inputs;
+        public final Tensor[] labels;
+        /**Number of samples in this batch. Only the final batch of an epoch may be smaller than the batch size.*/
+        public int size;
+        /**The inputs of this batch stacked along a new last dimension, as taken by forwardPropBatch. Null if the batch size is 1.*/
+        public Tensor stackedInputs;
+
+        //Kept so that full batches can be stacked without allocating
+        private final Tensor fullStack;
+
+        private Batch(Dataset data, int batchSize){
+            inputs = new Tensor[batchSize];
+            labels = new Tensor[batchSize];
+            for(int b = 0; b < batchSize; b++){
+                inputs[b] = new Tensor(data.getInputDims());
+                labels[b] = new Tensor(data.getLabelDims());
+            }
+            fullStack = batchSize > 1 ? new Tensor(ArrayUtils.appendValue(data.getInputDims(), batchSize)) : null;
+        }
+    }
+
+    private final Dataset data;
+    private final int batchSize;
+    private final int[] order;
+    private final int batchCount;
+
+    private final BlockingQueue<Batch> ready;
+    private final BlockingQueue<Batch> free;
+
+    private final AtomicInteger nextBatch = new AtomicInteger();
+    private int batchesTaken = 0;
+
+    private final Thread[] producers;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**Start preparing an epoch, in a random order.
+     * @param capacity maximum number of finished batches waiting to be taken
+     * @param producerCount number of threads preparing batches. With 0, each batch is prepared by take, on the caller's thread.
+     */
+    public DataPipeline(Dataset data, int batchSize, int capacity, int producerCount){
+        this(data, ArrayUtils.randomOrderInts(0, data.size() - 1), batchSize, capacity, producerCount);
+    }
+
+    /**Start preparing an epoch, reading samples in the given order.*/
+    public DataPipeline(Dataset data, int[] order, int batchSize, int capacity, int producerCount){
+        this.data = data;
+        this.batchSize = batchSize;
+        this.order = order;
+        batchCount = (order.length + batchSize - 1) / batchSize;
+
+        //Enough batches that every producer can fill one while the queue is full and the trainer holds another
+        ready = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        free = new ArrayBlockingQueue<>(capacity + producerCount + 1);
+        for(int i = 0; i < capacity + producerCount + 1; i++){
+            free.add(new Batch(data, batchSize));
+        }
+
+        producers = new Thread[producerCount];
+        for(int p = 0; p < producerCount; p++){
+            producers[p] = new Thread(this::produce, "DataPipeline producer " + p);
+            //Daemon threads, so that an unfinished epoch does not keep the program alive
+            producers[p].setDaemon(true);
+            producers[p].setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            producers[p].start();
+        }
+    }
+
+    //Claim and fill batches until every batch of the epoch has been claimed
+    private void produce(){
+        try {
+            int b;
+            while((b = nextBatch.getAndIncrement()) < batchCount){
+                Batch batch = free.take();
+                fill(batch, b * batchSize, Math.min((b + 1) * batchSize, order.length));
+                ready.put(batch);
+            }
+        } catch (InterruptedException e) {
+            //Closed before the epoch was finished
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fill(Batch batch, int from, int to){
+        TrainingEvents.BatchDecode event = TrainingEvents.BatchDecode.start();
+
+        batch.size = to - from;
+        for(int b = 0; b < batch.size; b++){
+            data.readInput(order[from + b], batch.inputs[b].values, 0);
+            data.readLabel(order[from + b], batch.labels[b].values, 0);
+            batch.inputs[b].markModified();
+        }
+
+        if(batchSize > 1){
+            stack(batch);
+        }
+
+        event.finish(data, batch.size);
+    }
+
+    //Copy the batch's inputs into a single tensor, for forwardPropBatch
+    private void stack(Batch batch){
+        batch.stackedInputs = batch.size == batchSize ? batch.fullStack : new Tensor(ArrayUtils.appendValue(data.getInputDims(), batch.size));
+        int sampleLength = batch.inputs[0].values.length;
+        for(int b = 0; b < batch.size; b++){
+            System.arraycopy(batch.inputs[b].values, 0, batch.stackedInputs.values, b * sampleLength, sampleLength);
+        }
+        batch.stackedInputs.markModified();
+    }
+
+    /**Number of batches in the epoch*/
+    public int getBatchCount(){
+        return batchCount;
+    }
+
+    /**Wait for the next finished batch.
+     * @return null once every batch of the epoch has been taken
+     */
+    public Batch take(){
+        if(batchesTaken == batchCount) return null;
+
+        if(producers.length == 0){
+            Batch batch = free.remove();
+            fill(batch, batchesTaken * batchSize, Math.min((batchesTaken + 1) * batchSize, order.length));
+            batchesTaken++;
+            return batch;
+        }
+
+        try {
+            Batch batch;
+            while((batch = ready.poll(100, TimeUnit.MILLISECONDS)) == null){
+                if(failure.get() != null) throw new RuntimeException("Producer failed while preparing batches", failure.get());
+            }
+            batchesTaken++;
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a batch", e);
+        }
+    }
+
+    /**Hand a batch back once it has been used, so that its buffers can be refilled.*/
+    public void recycle(Batch batch){
+        free.add(batch);
+    }
+
+    /**Stops the producers, whether or not the epoch was finished.*/
+    @Override
+    public void close(){
+        for(Thread t : producers) t.interrupt();
+        try {
+            for(Thread t : producers) t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**A labelled set of samples, read by index. Implementations may decode samples only when they are read, so that the whole set
+ * need not fit in heap. Samples are written into arrays given by the caller, which can then be reused.
+ * Reads may be made from several threads at once.*/
+public interface Dataset {
+
+    /**Number of samples*/
+    int size();
+
+    /**Dimensions of each input*/
+    int[] getInputDims();
+
+    /**Dimensions of each label*/
+    int[] getLabelDims();
+
+    /**Write the input of a sample into dest, from offset onwards.*/
+    void readInput(int index, double[] dest, int offset);
+
+    /**Write the label of a sample into dest, from offset onwards.*/
+    void readLabel(int index, double[] dest, int offset);
+
+    /**A dataset of tensors that are already in memory. The tensors are not copied.*/
+    static Dataset of(Tensor[] inputs, Tensor[] labels){
+        return new TensorDataset(inputs, labels);
+    }
+}
@@ -0,0 +1,147 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**A convolutional or fully connected layer, followed by ReLU and optionally max pooling, run as a single operator.
+ * ReLU is applied in place to the output of the layer before it, so the ReLU layer's output and gradient tensors are never written.
+ * Where there is pooling, ReLU is applied after it instead, to a quarter as many values (for 2x2 pooling):
+ * max and ReLU commute, and ReLU zeroes the gradient of any window whose max is not positive either way.
+ * The gradients, and so the training, are the same as those of the separate layers.
+ * Fused layers are built by plan, which Network runs in place of its layers.*/
+class FusedLayer implements Layer {
+
+    //The layers being fused. They hold all parameters and backprop state, so are still what a network saves and replicates.
+    private final Layer linear;
+    private final Layer_ReluACT relu;
+    //Null if there is no pooling
+    private final Layer_MaxPooling pool;
+
+    //Output grads masked by ReLU, for a single sample
+    private final Tensor maskedGrad;
+    //Output of the most recent sample or batch, after ReLU. Only positive values pass their gradient back.
+    private Tensor recentOutput;
+
+    private FusedLayer(Layer linear, Layer_ReluACT relu, Layer_MaxPooling pool){
+        this.linear = linear;
+        this.relu = relu;
+        this.pool = pool;
+        maskedGrad = new Tensor(getOutputDims());
+    }
+
+    /**Fuse every conv -> ReLU -> max pool, conv -> ReLU, and fully connected -> ReLU sequence in layers.
+     * @return the operators to run, in order: fused layers, and the remaining layers as they are
+     */
+    static Layer[] plan(Layer[] layers){
+        Layer[] plan = {};
+
+        for(int i = 0; i < layers.length; i++){
+            boolean linear = layers[i] instanceof Layer_Convolutional || layers[i] instanceof Layer_FullyConnected;
+            if(!linear || i + 1 >= layers.length || !(layers[i + 1] instanceof Layer_ReluACT)){
+                plan = ArrayUtils.appendValue(plan, layers[i]);
+                continue;
+            }
+
+            Layer_MaxPooling pool = null;
+            if(layers[i] instanceof Layer_Convolutional && i + 2 < layers.length && layers[i + 2] instanceof Layer_MaxPooling){
+                pool = (Layer_MaxPooling) layers[i + 2];
+            }
+
+            plan = ArrayUtils.appendValue(plan, new FusedLayer(layers[i], (Layer_ReluACT) layers[i + 1], pool));
+            i += pool == null ? 1 : 2;
+        }
+
+        return plan;
+    }
+
+    @Override
+    public Tensor forwardProp(Tensor input) {
+        Tensor output = linear.forwardProp(input);
+        if(pool != null) output = pool.forwardProp(output);
+
+        //The output is the buffer of the layer before, which that layer does not read again
+        reluInPlace(output);
+        recentOutput = output;
+        return output;
+    }
+
+    @Override
+    public Tensor infer(Tensor input) {
+        Tensor output = linear.infer(input);
+        if(pool != null) output = pool.infer(output);
+
+        reluInPlace(output);
+        return output;
+    }
+
+    @Override
+    public Tensor backProp(Tensor outputGrad, double learningRate) {
+        VectorKernels.active.reluGradients(outputGrad.values, recentOutput.values, maskedGrad.values, maskedGrad.values.length);
+
+        Tensor grad = maskedGrad;
+        if(pool != null) grad = pool.backProp(grad, learningRate);
+        return linear.backProp(grad, learningRate);
+    }
+
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        Tensor outputs = linear.forwardPropBatch(inputs);
+        if(pool != null) outputs = pool.forwardPropBatch(outputs);
+
+        reluInPlace(outputs);
+        recentOutput = outputs;
+        return outputs;
+    }
+
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        Tensor outputs = linear.inferBatch(inputs);
+        if(pool != null) outputs = pool.inferBatch(outputs);
+
+        reluInPlace(outputs);
+        return outputs;
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        Tensor grads = outputGrads.zeroes();
+        VectorKernels.active.reluGradients(outputGrads.values, recentOutput.values, grads.values, grads.values.length);
+
+        if(pool != null) grads = pool.backPropBatch(grads, learningRate);
+        return linear.backPropBatch(grads, learningRate);
+    }
+
+    private static void reluInPlace(Tensor t){
+        VectorKernels.active.relu(t.values, t.values, t.values.length);
+        t.markModified();
+    }
+
+    @Override
+    public int[] getOutputDims() {
+        return pool != null ? pool.getOutputDims() : relu.getOutputDims();
+    }
+
+    @Override
+    public Tensor[] getParameters() {
+        return linear.getParameters();
+    }
+
+    @Override
+    public Layer replicate() {
+        return new FusedLayer(linear.replicate(), (Layer_ReluACT) relu.replicate(), pool == null ? null : (Layer_MaxPooling) pool.replicate());
+    }
+
+    @Override
+    public Layer shareParameters() {
+        return new FusedLayer(linear.shareParameters(), (Layer_ReluACT) relu.shareParameters(), pool == null ? null : (Layer_MaxPooling) pool.shareParameters());
+    }
+
+    /**The convolutional or fully connected layer, which runs first*/
+    Layer getFirstLayer(){
+        return linear;
+    }
+
+    /**The fused layers' names, e.g. "Layer_Convolutional + Layer_ReluACT + Layer_MaxPooling"*/
+    @Override
+    public String toString() {
+        String name = linear.getClass().getSimpleName() + " + " + relu.getClass().getSimpleName();
+        return pool == null ? name : name + " + " + pool.getClass().getSimpleName();
+    }
+}
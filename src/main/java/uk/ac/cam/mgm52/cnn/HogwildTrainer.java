@@ -0,0 +1,88 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Trains a network with lock-free asynchronous SGD, in the style of Hogwild! (Niu et al. 2011 https://arxiv.org/abs/1106.5730).
+ * Every worker thread runs forward and back propagation on its own view of the network, so activations are kept per thread.
+ * All views share the same parameter tensors, which are updated in place without locking.
+ * Updates from different threads may occasionally overwrite each other; for sparse or low-contention models this costs little accuracy.*/
+public class HogwildTrainer extends Trainer {
+
+    //One view of the network per worker. Each shares the master network's parameters.
+    private Network[] views;
+
+    /**@param workerCount number of threads training the network at once*/
+    HogwildTrainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate, int batchSize, int workerCount){
+        super(network, lossFun, inputs, labels, talkInterval, learningRate, batchSize);
+
+        views = new Network[workerCount];
+        for(int w = 0; w < workerCount; w++){
+            views[w] = network.shareParameters();
+        }
+    }
+
+    HogwildTrainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate){
+        this(network, lossFun, inputs, labels, talkInterval, learningRate, 1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**Perform one "lap" of the training data, with every worker taking the next unclaimed batch until none remain.
+     * Progress is only reported once the epoch is complete, as workers finish their batches out of order.*/
+    @Override
+    void epoch(){
+        epochCount++;
+        say("BEGINNING EPOCH " + epochCount);
+
+        int[] trainOrder = ArrayUtils.randomOrderInts(0, inputs.length - 1);
+        double[][] recentOutputs = new double[trainOrder.length][];
+        double[] recentLosses = talkInterval > 0 ? new double[trainOrder.length] : null;
+
+        AtomicInteger nextBatch = new AtomicInteger();
+        DoubleAdder totalLoss = new DoubleAdder();
+        LongAdder correct = new LongAdder();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] workers = new Thread[views.length];
+        for(int w = 0; w < workers.length; w++){
+            Network view = views[w];
+
+            workers[w] = new Thread(() -> {
+                int from;
+                while((from = nextBatch.getAndAdd(batchSize)) < trainOrder.length){
+                    int to = Math.min(from + batchSize, trainOrder.length);
+
+                    if(to - from == 1) recentOutputs[from] = train(view, inputs[trainOrder[from]], labels[trainOrder[from]], recentLosses, from);
+                    else trainBatch(view, trainOrder, from, to, learningRate, recentOutputs, recentLosses);
+
+                    if(talkInterval > 0){
+                        for(int b = from; b < to; b++){
+                            int j = trainOrder[b];
+                            totalLoss.add(recentLosses[b]);
+                            if(ArrayUtils.findIndexOfMax(labels[j].values) == ArrayUtils.findIndexOfMax(recentOutputs[b])) correct.increment();
+                        }
+                    }
+                }
+            }, "HogwildTrainer worker " + w);
+
+            workers[w].setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            workers[w].start();
+        }
+
+        try {
+            for(Thread t : workers) t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for workers", e);
+        }
+
+        if(failure.get() != null) throw new RuntimeException("Worker failed during epoch", failure.get());
+
+        say("Average loss for epoch is " + totalLoss.sum() / trainOrder.length);
+        say("and accuracy is " + 100.0 * correct.sum() / trainOrder.length + "%");
+        say("(learning rate " + learningRate  + ", " + views.length + " workers)");
+        say("Completed epoch");
+        say("");
+    }
+}
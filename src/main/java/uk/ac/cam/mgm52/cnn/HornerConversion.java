@@ -17,6 +17,18 @@ public class HornerConversion {
         return horner;
     }
 
+    /**Distance between consecutive elements of each dimension, i.e. the running product of the dimension sizes.
+     * With these, i = i1*s1 + i2*s2 + i3*s3 + ... */
+    public static int[] strides(int[] myDimSizes){
+        int[] strides = new int[myDimSizes.length];
+        int product = 1;
+        for(int i = 0; i < myDimSizes.length; i++){
+            strides[i] = product;
+            product *= myDimSizes[i];
+        }
+        return strides;
+    }
+
     /**Convert from index to coords, working back from formula i = i1 + d1*(i2 + d2*(i3 + ...*/
     public static int[] hornerToCoords(int hornerIndex, int[] myDimSizes){
         int[] coords = new int[myDimSizes.length];
@@ -0,0 +1,64 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**Greyscale images and their labels, read lazily from a pair of memory-mapped IDX files.
+ * Images are normalized as by IdxReader.readGreyImages, and labels are one-hot encoded, each time a sample is read.*/
+public class IdxDataset implements Dataset {
+
+    private final IdxFile images;
+    private final IdxFile labels;
+
+    private final int size;
+    private final int classCount;
+
+    public IdxDataset(String imagePath, String labelPath) throws IOException {
+        this(imagePath, labelPath, Integer.MAX_VALUE);
+    }
+
+    /**@param limit maximum number of samples to use, taken from the start of the files*/
+    public IdxDataset(String imagePath, String labelPath, int limit) throws IOException {
+        //Only the label scan happens up front; images are decoded as they are read, within each BatchDecode event
+        TrainingEvents.DatasetLoad event = new TrainingEvents.DatasetLoad();
+        event.begin();
+
+        images = new IdxFile(imagePath);
+        labels = new IdxFile(labelPath);
+        size = Math.min(limit, Math.min(images.size(), labels.size()));
+
+        //Labels are assumed to be 0 to n-1. Scanning them costs one byte per sample.
+        int maxLabel = 0;
+        for(int i = 0; i < labels.size(); i++){
+            maxLabel = Math.max(maxLabel, labels.getLabel(i));
+        }
+        classCount = maxLabel + 1;
+        event.finish(imagePath, size, labels.size());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int[] getInputDims() {
+        return images.getSampleDims();
+    }
+
+    @Override
+    public int[] getLabelDims() {
+        return new int[] {classCount};
+    }
+
+    @Override
+    public void readInput(int index, double[] dest, int offset) {
+        images.decodeGreyImage(index, dest, offset);
+    }
+
+    @Override
+    public void readLabel(int index, double[] dest, int offset) {
+        Arrays.fill(dest, offset, offset + classCount, 0);
+        dest[offset + labels.getLabel(index)] = 1;
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**An IDX file mapped into memory. Only the header is parsed when the file is opened; samples are decoded when they are accessed,
+ * straight from the mapped bytes, so opening is near-instant and heap use does not depend on the size of the file.
+ * Samples are indexed along the first IDX dimension. Reads use absolute positions, so a file can be shared between threads.*/
+public class IdxFile {
+
+    //Type codes given by the third byte of the magic number
+    public static final int UNSIGNED_BYTE = 0x08;
+    public static final int SIGNED_BYTE = 0x09;
+    public static final int SHORT = 0x0B;
+    public static final int INT = 0x0C;
+    public static final int FLOAT = 0x0D;
+    public static final int DOUBLE = 0x0E;
+
+    private final MappedByteBuffer data;
+    private final int dataStart;
+
+    private final int type;
+    private final int typeSize;
+
+    private final int count;
+    //Dimensions of each sample, in Horner order (the last IDX dimension, which is stored contiguously, comes first)
+    private final int[] sampleDims;
+    private final int sampleLength;
+
+    public IdxFile(String path) throws IOException {
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException(path + " is too large to map in one buffer");
+            //The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        //Magic number: two zero bytes, the type code, then the number of dimensions
+        if(data.limit() < 4 || data.get(0) != 0 || data.get(1) != 0) throw new IOException(path + " is not an IDX file");
+        type = data.get(2) & 0xFF;
+        typeSize = typeSize(type);
+        int rank = data.get(3) & 0xFF;
+        if(rank == 0) throw new IOException(path + " has no dimensions");
+        //Each dimension's size is a 4 byte int after the magic number
+        if(data.limit() < 4 + 4 * rank) throw new IOException(path + " is shorter than its header");
+
+        count = data.getInt(4);
+        sampleDims = new int[Math.max(rank - 1, 1)];
+        sampleDims[0] = 1;
+        for(int d = 1; d < rank; d++){
+            sampleDims[rank - 1 - d] = data.getInt(4 + 4 * d);
+        }
+        sampleLength = ArrayUtils.product(sampleDims);
+
+        dataStart = 4 + 4 * rank;
+        if(dataStart + (long) count * sampleLength * typeSize > data.limit()) throw new IOException(path + " is shorter than its header describes");
+    }
+
+    private static int typeSize(int type) throws IOException {
+        switch(type){
+            case UNSIGNED_BYTE:
+            case SIGNED_BYTE: return 1;
+            case SHORT: return 2;
+            case INT:
+            case FLOAT: return 4;
+            case DOUBLE: return 8;
+            default: throw new IOException("Unknown IDX type code " + type);
+        }
+    }
+
+    /**Number of samples, i.e. the size of the first IDX dimension*/
+    public int size(){
+        return count;
+    }
+
+    /**Type code of the stored values, e.g. UNSIGNED_BYTE*/
+    public int getType(){
+        return type;
+    }
+
+    /**Dimensions of each sample as a tensor, e.g. {columns, rows} for images. {1} if the file is one-dimensional.*/
+    public int[] getSampleDims(){
+        return sampleDims.clone();
+    }
+
+    /**Number of values in each sample*/
+    public int getSampleLength(){
+        return sampleLength;
+    }
+
+    /**The raw, big-endian bytes of a sample. The buffer is a view of the mapping, so nothing is copied.*/
+    public ByteBuffer sampleBytes(int sample){
+        ByteBuffer bytes = data.duplicate();
+        int start = sampleStart(sample);
+        bytes.position(start).limit(start + sampleLength * typeSize);
+        return bytes.slice();
+    }
+
+    /**Value of an element of a sample, with its index in Horner order (which matches the order of the file).*/
+    public double getValue(int sample, int element){
+        int position = sampleStart(sample) + element * typeSize;
+        switch(type){
+            case UNSIGNED_BYTE: return data.get(position) & 0xFF;
+            case SIGNED_BYTE: return data.get(position);
+            case SHORT: return data.getShort(position);
+            case INT: return data.getInt(position);
+            case FLOAT: return data.getFloat(position);
+            default: return data.getDouble(position);
+        }
+    }
+
+    /**As getValue, for a sample containing a single integer such as a label.*/
+    public int getLabel(int sample){
+        return (int) getValue(sample, 0);
+    }
+
+    /**Decode a greyscale image into dest, which must hold getSampleLength() values.
+     * Pixels are normalized by normalizeGrey. This matches IdxReader.readGreyImages.*/
+    public void decodeGreyImage(int sample, double[] dest){
+        decodeGreyImage(sample, dest, 0);
+    }
+
+    /**As above, writing the image into dest from offset onwards, e.g. into its slice of a batch.*/
+    public void decodeGreyImage(int sample, double[] dest, int offset){
+        if(type != UNSIGNED_BYTE) throw new IllegalStateException("Greyscale images must be stored as unsigned bytes, not type " + type);
+
+        int start = sampleStart(sample);
+        for(int p = 0; p < sampleLength; p++){
+            dest[offset + p] = normalizeGrey(data.get(start + p));
+        }
+    }
+
+    /**The normalization applied to greyscale pixels: (128 - x)/255, so that dark pixels are positive.*/
+    static double normalizeGrey(byte pixel){
+        return (128 - (pixel & 0xFF)) / 255.0;
+    }
+
+    /**Copy the raw bytes of samples [from, from + count) into dest, from offset onwards.*/
+    public void copyBytes(int from, int count, byte[] dest, int offset){
+        if(count == 0) return;
+        sampleStart(from + count - 1);
+
+        ByteBuffer bytes = data.duplicate();
+        bytes.position(sampleStart(from));
+        bytes.get(dest, offset, count * sampleLength * typeSize);
+    }
+
+    /**As decodeGreyImage, into a new tensor.*/
+    public Tensor getGreyImage(int sample){
+        Tensor image = new Tensor(sampleDims);
+        decodeGreyImage(sample, image.values);
+        return image;
+    }
+
+    private int sampleStart(int sample){
+        if(sample < 0 || sample >= count) throw new IndexOutOfBoundsException("Sample " + sample + " is out of range for " + count + " samples");
+        return dataStart + sample * sampleLength * typeSize;
+    }
+}
@@ -1,6 +1,5 @@
 package uk.ac.cam.mgm52.cnn;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -9,49 +8,32 @@ public class IdxReader {
 
     private IdxReader(){}
 
-    //Adapted from Radek Mackowiak's method https://stackoverflow.com/a/20383900
+    /**Decode the first limit images of an IDX file of greyscale images. Each pixel is normalized to (128 - x)/255.
+     * Every image is decoded up front; use IdxFile directly to decode images only as they are needed.*/
     public static Tensor[] readGreyImages(String path, int limit) throws IOException {
-        FileInputStream inImage;
-
-        inImage = new FileInputStream(path);
-
-        int magicNumberImages = (inImage.read() << 24) | (inImage.read() << 16) | (inImage.read() << 8) | (inImage.read());
-        int numberOfImages = (inImage.read() << 24) | (inImage.read() << 16) | (inImage.read() << 8) | (inImage.read());
-        int numberOfRows  = (inImage.read() << 24) | (inImage.read() << 16) | (inImage.read() << 8) | (inImage.read());
-        int numberOfColumns = (inImage.read() << 24) | (inImage.read() << 16) | (inImage.read() << 8) | (inImage.read());
-
-        int numberOfPixels = numberOfRows * numberOfColumns;
+        TrainingEvents.DatasetLoad event = new TrainingEvents.DatasetLoad();
+        event.begin();
+        IdxFile file = new IdxFile(path);
 
         Tensor[] images = new Tensor[limit];
-
         for(int i = 0; i < limit; i++) {
-
-            double[] imgPixels = new double[numberOfPixels];
-
-            if(i % 100 == 0) {System.out.println("Number of images extracted: " + i);}
-
-            for(int p = 0; p < numberOfPixels; p++) {
-                double grey = (128 - inImage.read())/255.0;
-                imgPixels[p] = grey;
-            }
-
-            images[i] = new Tensor(new int[] {numberOfColumns, numberOfRows}, imgPixels);
+            images[i] = file.getGreyImage(i);
         }
+        event.finish(path, limit, (long) limit * file.getSampleLength());
 
         return images;
     }
 
     public static int[] readLabels(String path, int limit) throws IOException {
-        FileInputStream inLabel = new FileInputStream(path);
-
-        int magicNumberLabels = (inLabel.read() << 24) | (inLabel.read() << 16) | (inLabel.read() << 8) | (inLabel.read());
-        int numberOfLabels = (inLabel.read() << 24) | (inLabel.read() << 16) | (inLabel.read() << 8) | (inLabel.read());
+        TrainingEvents.DatasetLoad event = new TrainingEvents.DatasetLoad();
+        event.begin();
+        IdxFile file = new IdxFile(path);
 
         int[] labels = new int[limit];
-
         for(int i = 0; i < limit; i++) {
-           labels[i] = inLabel.read();
-       }
+            labels[i] = file.getLabel(i);
+        }
+        event.finish(path, limit, limit);
 
         return labels;
     }
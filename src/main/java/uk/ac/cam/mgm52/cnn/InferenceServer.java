@@ -0,0 +1,170 @@
+package uk.ac.cam.mgm52.cnn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**Serves a trained network over HTTP on the loopback interface.
+ * POST /predict with the input values (in Horner order, separated by commas or whitespace) returns the most likely class and the
+ * probability of every class, as JSON. Concurrent predictions are coalesced into batches by a MicroBatcher.
+ * GET /stats returns latency percentiles and a histogram of batch sizes.
+ * Usage: InferenceServer checkpoint [port] [maxBatchSize] [maxWaitMicros]*/
+public class InferenceServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final MicroBatcher batcher;
+    //Time from receiving a prediction request to sending its response
+    private final LatencyRecorder latencies = new LatencyRecorder(1 << 16);
+
+    /**@param port port to listen on, or 0 for any free port
+     * @param maxBatchSize most predictions run through the network at once
+     * @param maxWaitMicros longest a prediction waits for others to join its batch
+     */
+    public InferenceServer(Network net, int port, int maxBatchSize, long maxWaitMicros) throws IOException {
+        batcher = new MicroBatcher(net, maxBatchSize, maxWaitMicros);
+        handlers = requestExecutor();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/predict", this::predict);
+        server.createContext("/stats", this::stats);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Network net = Network.load(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long maxWaitMicros = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+
+        InferenceServer server = new InferenceServer(net, port, maxBatchSize, maxWaitMicros);
+        System.out.println("Serving " + args[0] + " at http://localhost:" + server.getPort() + "/predict");
+    }
+
+    //Each request is handled on its own thread while it waits for its batch. Virtual threads are used where the JDK has them (21+).
+    private static ExecutorService requestExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread t = new Thread(runnable, "InferenceServer handler");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**The port being listened on*/
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+
+        if(!exchange.getRequestMethod().equals("POST")){
+            respond(exchange, 405, "{\"error\":\"Use POST\"}");
+            return;
+        }
+
+        double[] input;
+        try {
+            input = parseValues(exchange.getRequestBody());
+            if(input.length != batcher.getInputLength()) throw new IllegalArgumentException("Expected " + batcher.getInputLength() + " input values but got " + input.length);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+            return;
+        }
+
+        double[] probabilities;
+        try {
+            probabilities = batcher.submit(input).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"Interrupted\"}");
+            return;
+        } catch (ExecutionException | IllegalStateException e) {
+            respond(exchange, 500, "{\"error\":\"Prediction failed\"}");
+            return;
+        }
+
+        StringBuilder json = new StringBuilder("{\"class\":").append(ArrayUtils.findIndexOfMax(probabilities)).append(",\"probabilities\":[");
+        for(int i = 0; i < probabilities.length; i++){
+            if(i > 0) json.append(',');
+            json.append(probabilities[i]);
+        }
+        json.append("]}");
+
+        respond(exchange, 200, json.toString());
+        latencies.record(System.nanoTime() - start);
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, getStatsJson());
+    }
+
+    /**Latency percentiles (in microseconds) over recent predictions, and the number of batches run of each size.*/
+    public String getStatsJson(){
+        long[] p = latencies.percentiles(50, 90, 99, 99.9, 100);
+        StringBuilder json = new StringBuilder("{\"predictions\":").append(latencies.getCount())
+                .append(",\"latencyMicros\":{\"p50\":").append(p[0] / 1000)
+                .append(",\"p90\":").append(p[1] / 1000)
+                .append(",\"p99\":").append(p[2] / 1000)
+                .append(",\"p99.9\":").append(p[3] / 1000)
+                .append(",\"max\":").append(p[4] / 1000)
+                .append("},\"batchSizes\":{");
+
+        long[] counts = batcher.getBatchSizeCounts();
+        boolean first = true;
+        for(int size = 1; size < counts.length; size++){
+            if(counts[size] == 0) continue;
+            if(!first) json.append(',');
+            json.append('"').append(size).append("\":").append(counts[size]);
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+
+    private static double[] parseValues(InputStream body) throws IOException {
+        String text = new String(body.readAllBytes(), StandardCharsets.UTF_8).trim();
+        if(text.isEmpty()) throw new IllegalArgumentException("No input values given");
+
+        String[] tokens = text.split("[,\\s]+");
+        double[] values = new double[tokens.length];
+        for(int i = 0; i < tokens.length; i++){
+            try {
+                values[i] = Double.parseDouble(tokens[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Input value " + i + " is not a number");
+            }
+        }
+        return values;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+
+    /**Stops accepting requests, then stops the batcher.*/
+    @Override
+    public void close(){
+        server.stop(0);
+        batcher.close();
+        handlers.shutdown();
+    }
+}
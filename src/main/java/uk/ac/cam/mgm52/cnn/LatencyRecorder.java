@@ -0,0 +1,42 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Records latencies from many threads and reports percentiles over the most recent of them.
+ * Latencies are kept in a fixed ring, so recording never allocates and memory use is bounded.*/
+class LatencyRecorder {
+
+    private final long[] latencies;
+    private final AtomicLong count = new AtomicLong();
+
+    /**@param window number of most recent latencies that percentiles are taken over*/
+    LatencyRecorder(int window){
+        latencies = new long[window];
+    }
+
+    void record(long nanos){
+        latencies[(int) (count.getAndIncrement() % latencies.length)] = nanos;
+    }
+
+    /**Total number of latencies recorded*/
+    long getCount(){
+        return count.get();
+    }
+
+    /**Latencies at each of the given percentiles (0 to 100), in nanoseconds. 0 if nothing has been recorded.*/
+    long[] percentiles(double... percentiles){
+        int filled = (int) Math.min(count.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, filled);
+        Arrays.sort(sorted);
+
+        long[] result = new long[percentiles.length];
+        if(filled == 0) return result;
+
+        for(int i = 0; i < percentiles.length; i++){
+            int rank = (int) Math.ceil(percentiles[i] / 100 * filled) - 1;
+            result[i] = sorted[Math.max(0, Math.min(rank, filled - 1))];
+        }
+        return result;
+    }
+}
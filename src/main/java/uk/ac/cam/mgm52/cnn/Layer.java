@@ -1,7 +1,36 @@
 package uk.ac.cam.mgm52.cnn;
 
 public interface Layer {
+     /**Forward propagate a single sample.
+      * Layers write their output into a buffer allocated when they are constructed, so the returned tensor is overwritten by the next call.*/
      Tensor forwardProp(Tensor input);
+     /**Backpropagate the most recent sample. As with forwardProp, the returned tensor may be overwritten by the next call.*/
      Tensor backProp(Tensor outputGrad, double learningRate);
+
+     /**Forward propagate a single sample for inference only. No state is kept for backprop, and scratch space and the output are
+      * allocated per call, so many threads may infer at once from the same layer, as long as none of them is training its parameters.*/
+     Tensor infer(Tensor input);
+
+     /**Forward propagate a batch of samples. The last dimension of inputs indexes each sample.*/
+     Tensor forwardPropBatch(Tensor inputs);
+     /**Forward propagate a batch of samples for inference only. As with infer, no state is kept, so many threads may do this at once.
+      * By default each sample is inferred separately; layers whose kernels gain from batching override this.*/
+     default Tensor inferBatch(Tensor inputs){
+          int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+          Tensor[] outputs = new Tensor[batchSize];
+          for(int b = 0; b < batchSize; b++) outputs[b] = infer(inputs.getSlice(b));
+          return Tensor.stack(outputs);
+     }
+     /**Backpropagate the most recent batch. Gradients are averaged across the batch before a single update is applied.*/
+     Tensor backPropBatch(Tensor outputGrads, double learningRate);
+
      int[] getOutputDims();
-}
\ No newline at end of file
+
+     /**Returns the tensors holding this layer's trainable parameters, or an empty array if it has none.*/
+     Tensor[] getParameters();
+     /**Returns a new layer with the same configuration and a copy of this layer's parameters.*/
+     Layer replicate();
+     /**Returns a new layer which shares this layer's parameter tensors, but keeps its own per-call state.
+      * Lets several threads train the same weights at once.*/
+     Layer shareParameters();
+}
@@ -0,0 +1,97 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**Cumulative time and allocation of each layer of a network, recorded separately for forward and backward propagation.
+ * Allocation is measured with ThreadMXBean, for the thread running the network.
+ * A network only records into its profiler when profiling has been enabled, so disabled profiling costs one null check per layer.*/
+public class LayerProfiler {
+
+    public static final int FORWARD = 0;
+    public static final int BACKWARD = 1;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String[] layerNames;
+
+    //Indexed by [direction][layer]
+    private final long[][] nanos;
+    private final long[][] bytes;
+    private final long[][] calls;
+
+    //Set by begin, for the layer currently being run
+    private long startNanos;
+    private long startBytes;
+
+    LayerProfiler(Layer[] layers){
+        layerNames = new String[layers.length];
+        for(int i = 0; i < layers.length; i++) layerNames[i] = layers[i].getClass().getSimpleName();
+
+        nanos = new long[2][layers.length];
+        bytes = new long[2][layers.length];
+        calls = new long[2][layers.length];
+    }
+
+    /**Start timing a layer.*/
+    void begin(){
+        startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        startNanos = System.nanoTime();
+    }
+
+    /**Finish timing a layer, adding its time and allocation to its totals.*/
+    void end(int layer, int direction){
+        long elapsed = System.nanoTime() - startNanos;
+        nanos[direction][layer] += elapsed;
+        bytes[direction][layer] += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        calls[direction][layer]++;
+    }
+
+    public long getNanos(int layer, int direction){
+        return nanos[direction][layer];
+    }
+
+    public long getAllocatedBytes(int layer, int direction){
+        return bytes[direction][layer];
+    }
+
+    public long getCalls(int layer, int direction){
+        return calls[direction][layer];
+    }
+
+    /**Clear all totals, e.g. at the start of a reporting interval.*/
+    public void reset(){
+        for(int d = 0; d < 2; d++){
+            for(int l = 0; l < layerNames.length; l++){
+                nanos[d][l] = 0;
+                bytes[d][l] = 0;
+                calls[d][l] = 0;
+            }
+        }
+    }
+
+    /**The totals of every layer as a single line of JSON, in layer order.*/
+    public String toJson(){
+        StringBuilder json = new StringBuilder("{\"layers\":[");
+        for(int l = 0; l < layerNames.length; l++){
+            if(l > 0) json.append(',');
+            json.append("{\"index\":").append(l)
+                    .append(",\"type\":\"").append(layerNames[l]).append('"')
+                    .append(",\"forwardCalls\":").append(calls[FORWARD][l])
+                    .append(",\"forwardNanos\":").append(nanos[FORWARD][l])
+                    .append(",\"forwardBytes\":").append(bytes[FORWARD][l])
+                    .append(",\"backwardCalls\":").append(calls[BACKWARD][l])
+                    .append(",\"backwardNanos\":").append(nanos[BACKWARD][l])
+                    .append(",\"backwardBytes\":").append(bytes[BACKWARD][l])
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**Total time spent in garbage collection by this JVM so far, in milliseconds.*/
+    static long gcMillis(){
+        long total = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+}
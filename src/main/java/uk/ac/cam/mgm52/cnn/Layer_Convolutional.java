@@ -13,10 +13,28 @@ public class Layer_Convolutional implements Layer {
     int[] filterDimSizes;
     int[] ccMapSize;
 
+    int[] inputDims;
     int[] outputDims;
 
     Tensor recentInput;
 
+    //Lowers inputs into patch matrices, so that all filters can be applied with one matrix multiply
+    ConvolutionEngine engine;
+    //The most recent input, lowered. Kept so that filter gradients can be calculated without lowering again.
+    double[] recentPatches;
+
+    //Buffers for single samples, allocated once their shapes are known. Each call overwrites them, so forwardProp and backProp return the same tensors every time.
+    Tensor output;
+    Tensor inputGrads;
+    Tensor filterGrads;
+    double[] samplePatches;
+    double[] patchGrads;
+
+    ConvolutionAlgorithm algorithm = ConvolutionAlgorithm.DIRECT;
+    //Applies 3x3 filters using Winograd's algorithm. Null unless this layer's filters are supported.
+    WinogradEngine winograd;
+    double[] winogradScratch;
+
     /**Set up layer.
      * @param filterDimSizes Size of each filter
      * @param depth Number of filters
@@ -25,6 +43,7 @@ public class Layer_Convolutional implements Layer {
         //Set up a single tensor that represents all filters
         while(filterDimSizes.length < inputDims.length) filterDimSizes = ArrayUtils.appendValue(filterDimSizes, 1);
         this.filterDimSizes = filterDimSizes;
+        this.inputDims = inputDims;
 
         //Calculate the size of the cross correlation map resultant from applying a given filter
         ccMapSize = ArrayUtils.subtractAll(inputDims, ArrayUtils.addAll(filterDimSizes, -1));
@@ -33,9 +52,40 @@ public class Layer_Convolutional implements Layer {
 
         //Following the initialization strategy proposed by He et. al. 2015 https://arxiv.org/pdf/1502.01852.pdf
         double randLimits = Math.sqrt(2) / Math.sqrt(ArrayUtils.product(inputDims));
-        filters = filters.randomsSND().product(randLimits);
+        filters = filters.randomsSND();
+        filters.scale(randLimits);
 
         outputDims = ArrayUtils.appendValue(ccMapSize, depth);
+
+        engine = new ConvolutionEngine(inputDims, filterDimSizes, ccMapSize);
+
+        output = new Tensor(outputDims);
+        inputGrads = new Tensor(inputDims);
+        filterGrads = filters.zeroes();
+        samplePatches = new double[engine.kernelSize * engine.patchCount];
+        patchGrads = new double[engine.kernelSize * engine.patchCount];
+
+        if(WinogradEngine.supports(inputDims, filterDimSizes)){
+            winograd = new WinogradEngine(inputDims, filterDimSizes, depth);
+            winogradScratch = new double[winograd.scratchSize()];
+        }
+    }
+
+    /**Choose how filters are applied. WINOGRAD needs 3x3 filters over an input of rank 2 or 3.
+     * @throws IllegalArgumentException if algorithm is not supported by this layer*/
+    public void setAlgorithm(ConvolutionAlgorithm algorithm){
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD && !supportsWinograd()){
+            throw new IllegalArgumentException("Winograd convolution needs 3x3 filters over an input of rank 2 or 3");
+        }
+        this.algorithm = algorithm;
+    }
+
+    public ConvolutionAlgorithm getAlgorithm(){
+        return algorithm;
+    }
+
+    public boolean supportsWinograd(){
+        return winograd != null;
     }
 
     /**Generate cross-correlation map of a filter applied to a tensor.
@@ -67,72 +117,177 @@ public class Layer_Convolutional implements Layer {
     public Tensor forwardProp(Tensor input) {
 
         recentInput = input;
-        Tensor output = null;
-
-        //Iterate through each filter, appending result to output tensor.
-        for (Tensor.RegionsIterator i = filters.new RegionsIterator(filterDimSizes, new int[0]); i.hasNext(); ) {
-            Tensor newMap = crossCorrelationMap(input, i.next(), ccMapSize, new int[0]);
 
-            //Append or assign new map to output
-            output = (output == null) ? newMap : output.appendTensor(newMap, filters.dimSizes.length);
+        //Filters are the last dimension of the output, so each filter's cross-correlation map is stored contiguously
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            //The input is only lowered if filter gradients are needed
+            recentPatches = null;
+            winograd.prepare(filters);
+            winograd.forward(input.values, 0, output.values, 0, winogradScratch);
+            return output;
         }
 
+        recentPatches = samplePatches;
+        engine.lower(input.values, 1, recentPatches);
+        engine.forward(recentPatches, filters.values, getDepth(), 1, output.values);
         return output;
     }
 
 
+    @Override
+    public Tensor infer(Tensor input) {
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            Tensor output = new Tensor(outputDims);
+            winograd.prepare(filters);
+            winograd.forward(input.values, 0, output.values, 0, new double[winograd.scratchSize()]);
+            return output;
+        }
+
+        return new Tensor(outputDims, engine.forward(engine.lower(input.values, 1), filters.values, getDepth(), 1));
+    }
+
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
-        //Initialise output to null. Easier than calculating size of first result.
-        Tensor filterGrads = null;
-        Tensor inputGrads = recentInput.zeroes();
+        //Deriv wrt filters = recent input cross-correlated with each output grad
+        Tensor filterGrads = filterGradients(outputGrad, 1);
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            //Found before the update below, which changes the filters
+            winograd.prepare(filters);
+            winograd.inputGradients(outputGrad.values, 0, inputGrads.values, 0, winogradScratch);
+        }
+        else engine.inputGradients(filters.values, outputGrad.values, getDepth(), 1, patchGrads, inputGrads.values);
 
-        //We can think of outputGrad as a series of "gradient filters" which we apply to the recent input.
-        //This is the size of each of those filters.
-        int[] outputGradSize = outputGrad.getFirstDimsCopy(outputGrad.dimSizes.length - 1);
+        //Gradient descent on filters. Applied in place, as the filters may be shared with other threads.
+        TrainingEvents.WeightUpdate update = TrainingEvents.WeightUpdate.start();
+        filters.axpy(-1 * learningRate, filterGrads);
+        update.finish(this, filters.values.length, 1);
 
-        //Iterate through each output grad, appending result to filter grad tensor.
-        //Simultaneously, iterate through our original filters, altering them via gradient descent
-        Tensor.RegionsIterator i = outputGrad.new RegionsIterator(outputGradSize, new int[0]);
-        Tensor.RegionsIterator j = filters.new RegionsIterator(filterDimSizes, new int[0]);
+        return inputGrads;
+    }
 
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
 
-        while ( i.hasNext() && j.hasNext()) {
-            Tensor outputLayer = i.next();
-            Tensor filterLayer = j.next();
+        recentInput = inputs;
 
-            //Calculating deriv wrt filters
-            Tensor newMap = crossCorrelationMap(recentInput, outputLayer, filterDimSizes, new int[0]);
-            //Append or assign new map to filter grad tensor
-            filterGrads = (filterGrads == null) ? newMap : filterGrads.appendTensor(newMap, outputGrad.dimSizes.length);
+        return new Tensor(ArrayUtils.appendValue(outputDims, batchSize), applyFilters(inputs, batchSize));
+    }
 
-            //Deriv wrt input = deriv wrt outputs * flipped filters
-            //To return the correct sized tensor, this requires some padding - which happens to be (filter sizes - 1)
-            int[] padding = ArrayUtils.addAll(filterLayer.dimSizes, -1);
-            Tensor flippedFilter = filterLayer.flip();
-            Tensor currentInputGrad = crossCorrelationMap(outputLayer, flippedFilter, inputGrads.dimSizes, padding);
-            inputGrads = inputGrads.add(currentInputGrad, 1);
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+        int[] dims = ArrayUtils.appendValue(outputDims, batchSize);
+
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            Tensor outputs = new Tensor(dims);
+            double[] scratch = new double[winograd.scratchSize()];
+            winograd.prepare(filters);
+
+            int inputSize = ArrayUtils.product(inputDims), outputSize = ArrayUtils.product(outputDims);
+            for(int b = 0; b < batchSize; b++){
+                winograd.forward(inputs.values, b * inputSize, outputs.values, b * outputSize, scratch);
+            }
+            return outputs;
         }
 
-        //Gradient descent on filters
-        filters = filters.add(filterGrads, -1 * learningRate);
+        return new Tensor(dims, engine.forward(engine.lower(inputs.values, batchSize), filters.values, getDepth(), batchSize));
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        int batchSize = outputGrads.dimSizes[outputGrads.dimSizes.length - 1];
+
+        //Filter and input gradients are summed across the batch by the engine
+        Tensor filterGrads = filterGradients(outputGrads, batchSize);
+
+        Tensor inputGrads = recentInput.zeroes();
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            winograd.prepare(filters);
+            int inputSize = ArrayUtils.product(inputDims), outputSize = ArrayUtils.product(outputDims);
+            for(int b = 0; b < batchSize; b++){
+                winograd.inputGradients(outputGrads.values, b * outputSize, inputGrads.values, b * inputSize, winogradScratch);
+            }
+        }
+        else engine.inputGradients(filters.values, outputGrads.values, getDepth(), batchSize, patchGrads, inputGrads.values);
+
+        //Gradient descent on filters, using the mean gradient
+        TrainingEvents.WeightUpdate update = TrainingEvents.WeightUpdate.start();
+        filters.axpy(-1 * learningRate / batchSize, filterGrads);
+        update.finish(this, filters.values.length, batchSize);
 
         return inputGrads;
     }
 
+    //Lower the inputs, keeping the patches for backprop, then apply every filter
+    private double[] applyFilters(Tensor inputs, int batchSize){
+        if(algorithm == ConvolutionAlgorithm.WINOGRAD){
+            recentPatches = null;
+            winograd.prepare(filters);
+
+            int inputSize = ArrayUtils.product(inputDims), outputSize = ArrayUtils.product(outputDims);
+            double[] outputs = new double[outputSize * batchSize];
+            for(int b = 0; b < batchSize; b++){
+                winograd.forward(inputs.values, b * inputSize, outputs, b * outputSize, winogradScratch);
+            }
+            return outputs;
+        }
+
+        recentPatches = engine.lower(inputs.values, batchSize);
+        return engine.forward(recentPatches, filters.values, getDepth(), batchSize);
+    }
+
+    //Deriv wrt filters, summed across the batch, using the patches lowered in the most recent forward pass
+    private Tensor filterGradients(Tensor outputGrads, int batchSize){
+        //Winograd's forward pass does not lower the input, so it is lowered now
+        if(recentPatches == null){
+            if(batchSize == 1) engine.lower(recentInput.values, 1, recentPatches = samplePatches);
+            else recentPatches = engine.lower(recentInput.values, batchSize);
+        }
+
+        engine.filterGradients(recentPatches, outputGrads.values, getDepth(), batchSize, filterGrads.values);
+        return filterGrads;
+    }
+
     @Override
     public int[] getOutputDims() {
         return outputDims;
     }
 
+    @Override
+    public Tensor[] getParameters() {
+        return new Tensor[] {filters};
+    }
+
+    @Override
+    public Layer replicate() {
+        Layer_Convolutional copy = new Layer_Convolutional(filterDimSizes, getDepth(), inputDims);
+        copy.filters = new Tensor(filters.dimSizes, filters.values.clone());
+        copy.algorithm = algorithm;
+        return copy;
+    }
+
+    @Override
+    public Layer shareParameters() {
+        Layer_Convolutional view = new Layer_Convolutional(filterDimSizes, getDepth(), inputDims);
+        view.filters = filters;
+        view.algorithm = algorithm;
+        return view;
+    }
+
+    /**Number of filters*/
+    public int getDepth() {
+        return filters.dimSizes[filters.dimSizes.length - 1];
+    }
+
     public void saveFilterImages() throws IOException {
 
         for (Tensor.RegionsIterator i = filters.new RegionsIterator(filterDimSizes, new int[0]); i.hasNext(); ) {
-            Tensor f = i.next();
-            int[] pixels = new int[f.values.length];
+            TensorView f = i.nextView();
+            int[] pixels = new int[f.size];
 
             for(int p = 0; p < pixels.length; p++) {
-                int gray = 255 - (int) (f.values[p] * 255);
+                int gray = 255 - (int) (f.getFlat(p) * 255);
 
                 pixels[p] = 0xFF000000 | (gray<<16) | (gray<<8) | gray;
             }
@@ -1,5 +1,7 @@
 package uk.ac.cam.mgm52.cnn;
 
+import java.util.Arrays;
+
 public class Layer_FullyConnected implements Layer {
 
     //We can think of weights as a series of input-sized weight tensors each associated with an output value
@@ -12,66 +14,157 @@ public class Layer_FullyConnected implements Layer {
     double[] recentOutput;
     Tensor recentInput;
 
+    //Buffers for single samples, allocated once their shapes are known. Each call overwrites them, so forwardProp and backProp return the same tensors every time.
+    Tensor output;
+    Tensor inputGrad;
+
     public Layer_FullyConnected(int outputLength, int[] inputDimSizes){
         expectedInputSizes = inputDimSizes;
         recentInput = new Tensor(inputDimSizes);
         recentOutput = new double[outputLength];
         outputDims = new int[] {outputLength};
 
+        //Stored as a row-major (output x input) matrix, i.e. each output's weights are contiguous
         weights = new Tensor(ArrayUtils.appendValue(inputDimSizes, outputLength));
 
         //Following the initialization strategy proposed by He et.  2015 https://arxiv.org/pdf/1502.01852.pdf
         double randLimits = Math.sqrt(2) / Math.sqrt(ArrayUtils.product(inputDimSizes));
-        weights = weights.randomsSND().product(randLimits);
+        weights = weights.randomsSND();
+        weights.scale(randLimits);
 
         biases = new double[outputLength];
+
+        output = new Tensor(outputDims, recentOutput);
+        inputGrad = new Tensor(inputDimSizes);
     }
 
     @Override
     public Tensor forwardProp(Tensor input) {
         recentInput = input;
-        Tensor.RegionsIterator i = weights.new RegionsIterator(expectedInputSizes, new int[0]);
+        int inputLength = input.values.length;
 
-        while(i.hasNext()){
-            recentOutput[i.coordIterator.getCurrentCount()] = i.next().innerProduct(input);
-        }
+        //Outputs = weights * input + biases, in one pass over the weights
+        Arrays.fill(recentOutput, 0);
+        MatrixUtils.gemv(weights.values, input.values, recentOutput, biases.length, inputLength);
 
-        recentOutput = ArrayUtils.addAll(recentOutput, biases);
-        return new Tensor(new int[] {recentOutput.length}, recentOutput);
+        for(int o = 0; o < biases.length; o++) recentOutput[o] += biases[o];
+        return output;
     }
 
+    @Override
+    public Tensor infer(Tensor input) {
+        int inputLength = input.values.length;
+        double[] outputs = new double[biases.length];
+
+        MatrixUtils.gemv(weights.values, input.values, outputs, biases.length, inputLength);
+
+        for(int o = 0; o < biases.length; o++) outputs[o] += biases[o];
+        return new Tensor(outputDims, outputs);
+    }
 
-    //TODO: consider creating an easier way of doing some process to a tensor over an iterating region
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
         //outputGrad = derivative of loss wrt bias output
+        int inputLength = recentInput.values.length;
+
+        //derivative of loss wrt inputs = weights^T * deriv wrt bias output
+        //derivative of loss wrt weights = deriv wrt bias output * input^T, which is applied straight to the weights as a rank-1 update.
+        //Updates are applied in place, as the weights may be shared with other threads.
+        //Input grads and the weight update share a single pass over the weights, so both fall within the update's event.
+        inputGrad.fill(0);
+        TrainingEvents.WeightUpdate update = TrainingEvents.WeightUpdate.start();
+        MatrixUtils.gemvTransposeRank1(weights.values, outputGrad.values, inputGrad.values, recentInput.values, -1.0 * learningRate, biases.length, inputLength);
+        weights.markModified();
+
+        for(int o = 0; o < biases.length; o++){
+            biases[o] -= learningRate * outputGrad.values[o];
+        }
+        update.finish(this, weights.values.length + biases.length, 1);
 
-        //derivative of loss wrt weights = input * deriv wrt bias output
-        Tensor weightGrad = null;
-        for(int i = 0; i < outputGrad.values.length; i++){
-            Tensor newGrads = recentInput.product(outputGrad.values[i]);
+        return inputGrad;
+    }
 
-            weightGrad = (weightGrad == null) ? newGrads : weightGrad.appendTensor(newGrads, weights.dimSizes.length);
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        recentInput = inputs;
+        return inferBatch(inputs);
+    }
+
+    //Only reads the weights, so is also the whole of the batched forward pass
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+        int inputLength = weights.values.length / biases.length;
+
+        //Outputs (batch x output) = inputs (batch x input) * weights^T, as each output's weights are stored contiguously
+        Tensor outputs = new Tensor(biases.length, batchSize);
+        MatrixUtils.gemmTransposeB(inputs.values, 0, weights.values, 0, outputs.values, 0, batchSize, biases.length, inputLength);
+
+        for(int n = 0; n < batchSize; n++){
+            for(int o = 0; o < biases.length; o++){
+                outputs.values[n * biases.length + o] += biases[o];
+            }
         }
 
-        //derivative of loss wrt inputs = weights * deriv wrt bias output
-        Tensor inputGrad = new Tensor(expectedInputSizes);
-        Tensor.RegionsIterator j = weights.new RegionsIterator(expectedInputSizes, new int[0]);
-        while(j.hasNext()){
-            Tensor newGrads = j.next().product(outputGrad.values[j.coordIterator.getCurrentCount()-1]);
+        return outputs;
+    }
 
-            inputGrad = inputGrad.add(newGrads, 1);
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        int batchSize = outputGrads.dimSizes[outputGrads.dimSizes.length - 1];
+        int inputLength = weights.values.length / biases.length;
+
+        //Input grads (batch x input) = outputGrads * weights. Calculated first, as the weights are then updated in place.
+        Tensor inputGrads = recentInput.zeroes();
+        MatrixUtils.gemm(outputGrads.values, 0, weights.values, 0, inputGrads.values, 0, batchSize, inputLength, biases.length);
+
+        double[] biasGrad = new double[biases.length];
+        for(int n = 0; n < batchSize; n++){
+            for(int o = 0; o < biases.length; o++){
+                biasGrad[o] += outputGrads.values[n * biases.length + o];
+            }
         }
 
-        //Adjusting weights & biases
-        weights = weights.add(weightGrad, -1.0 * learningRate);
-        biases = ArrayUtils.addAll(biases, ArrayUtils.multAll(outputGrad.values, -1.0 * learningRate));
+        //Weight grads (output x input) = outputGrads^T * inputs, which sums the grads of every sample in the batch.
+        //Scaling the output grads first turns this into a rank-k update applied straight to the weights, using the mean gradient.
+        TrainingEvents.WeightUpdate update = TrainingEvents.WeightUpdate.start();
+        double[] scaledGrads = ArrayUtils.multAll(outputGrads.values, -1.0 * learningRate / batchSize);
+        MatrixUtils.gemmTransposeA(scaledGrads, 0, recentInput.values, 0, weights.values, 0, biases.length, inputLength, batchSize);
+        weights.markModified();
 
-        return inputGrad;
+        //Adjusting biases using the mean gradient
+        for(int o = 0; o < biases.length; o++){
+            biases[o] -= learningRate * biasGrad[o] / batchSize;
+        }
+        update.finish(this, weights.values.length + biases.length, batchSize);
+
+        return inputGrads;
     }
 
     @Override
     public int[] getOutputDims() {
         return outputDims;
     }
+
+    //Biases are wrapped in a tensor which shares their array
+    @Override
+    public Tensor[] getParameters() {
+        return new Tensor[] {weights, new Tensor(new int[] {biases.length}, biases)};
+    }
+
+    @Override
+    public Layer replicate() {
+        Layer_FullyConnected copy = new Layer_FullyConnected(biases.length, expectedInputSizes);
+        copy.weights = new Tensor(weights.dimSizes, weights.values.clone());
+        copy.biases = biases.clone();
+        return copy;
+    }
+
+    @Override
+    public Layer shareParameters() {
+        Layer_FullyConnected view = new Layer_FullyConnected(biases.length, expectedInputSizes);
+        view.weights = weights;
+        view.biases = biases;
+        return view;
+    }
 }
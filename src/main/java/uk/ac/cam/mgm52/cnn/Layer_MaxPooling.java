@@ -9,8 +9,24 @@ public class Layer_MaxPooling implements Layer{
 
     Tensor inputTensor;
 
-    //Indices of each max value. Used in backprop later.
+    //Flat index within the input of each max value. Used in backprop later.
     int[] maxIndices;
+    //As above, for each sample of the most recent batch
+    int[] batchMaxIndices;
+
+    //Flat index within the input of the first element of each window, in output order
+    private int[] windowStarts;
+    //Flat index of each element of a window, relative to its first element
+    private int[] windowOffsets;
+
+    //Width (2 or 3) of square windows moved with stride 2 across the first two dims, separately for each channel.
+    //These common cases are pooled by a kernel that scans the input directly. 0 if this layer uses the general N-dimensional path.
+    private final int planarSize;
+    //Input and output sizes of the first two dims, and the number of channels (the product of the remaining dims)
+    private final int width, height, outWidth, outHeight, channels;
+
+    //Buffer for the input grads of a single sample. Each call overwrites it, so backProp returns the same tensor every time.
+    Tensor inputGrads;
 
     public Layer_MaxPooling(int[] strides, int[] sizes, int[] expectedInputDims){
         while(strides.length < expectedInputDims.length) strides = ArrayUtils.appendValue(strides, 1);
@@ -28,50 +44,192 @@ public class Layer_MaxPooling implements Layer{
         outputTensor = new Tensor(outputDims);
 
         maxIndices = new int[outputTensor.values.length];
+        inputGrads = inputTensor.zeroes();
+
+        //The windows are the same for every input, so their positions are worked out once
+        CoordUtils.CoordCursor windows = new CoordUtils.CoordCursor(new int[expectedInputDims.length], ArrayUtils.subtractAll(expectedInputDims, sizes), strides, inputTensor.strides);
+        windowStarts = new int[outputTensor.values.length];
+        for(int o = 0; windows.advance(); o++){
+            windowStarts[o] = windows.getFlatIndex();
+        }
+        windowOffsets = CoordUtils.flatOffsets(sizes, inputTensor.strides);
+
+        boolean planar = expectedInputDims.length >= 2 && (sizes[0] == 2 || sizes[0] == 3) && sizes[1] == sizes[0] && strides[0] == 2 && strides[1] == 2;
+        for(int d = 2; d < expectedInputDims.length; d++) planar &= sizes[d] == 1 && strides[d] == 1;
+        planarSize = planar ? sizes[0] : 0;
+
+        width = expectedInputDims[0];
+        height = expectedInputDims.length > 1 ? expectedInputDims[1] : 1;
+        outWidth = outputDims[0];
+        outHeight = outputDims.length > 1 ? outputDims[1] : 1;
+        channels = inputTensor.values.length / (width * height);
     }
 
     @Override
     public Tensor forwardProp(Tensor input) {
-        //Apply max function across input
-        for (Tensor.RegionsIterator i = input.new RegionsIterator(sizes, new int[0], strides); i.hasNext(); ) {
-            Tensor nextRegion = i.next();
-            int maxIndex = nextRegion.maxValueIndex();
-
-            maxIndices[i.coordIterator.getCurrentCount()-1] = maxIndex;
-            outputTensor.values[i.coordIterator.getCurrentCount()-1] = nextRegion.values[maxIndex];
-        }
-
+        pool(input.values, 0, outputTensor.values, maxIndices, 0);
         return outputTensor;
     }
 
 
+    //The window positions are only read, so they can be shared between threads
+    @Override
+    public Tensor infer(Tensor input) {
+        Tensor output = outputTensor.zeroes();
+        pool(input.values, 0, output.values, new int[output.values.length], 0);
+        return output;
+    }
+
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
-        Tensor inputGrads = inputTensor.zeroes();
+        inputGrads.fill(0);
+        unpool(outputGrad.values, maxIndices, 0, inputGrads.values, 0);
+        return inputGrads;
+    }
+
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+        Tensor outputs = new Tensor(ArrayUtils.appendValue(outputTensor.dimSizes, batchSize));
+        batchMaxIndices = new int[outputTensor.values.length * batchSize];
+
+        for(int n = 0; n < batchSize; n++){
+            pool(inputs.values, n * inputTensor.values.length, outputs.values, batchMaxIndices, n * outputTensor.values.length);
+        }
 
-        //In this loop, gradients are paired with the element that previously returned a max value
-        for (Tensor.RegionsIterator i = inputGrads.new RegionsIterator(sizes, new int[0], strides); i.hasNext(); ) {
-            i.next();
+        return outputs;
+    }
 
-            int maxIndex = maxIndices[i.coordIterator.getCurrentCount()-1];
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+        Tensor outputs = new Tensor(ArrayUtils.appendValue(outputTensor.dimSizes, batchSize));
+        int[] indices = new int[outputs.values.length];
 
-            //Coords of max, relative to region start
-            int[] maxCoords = HornerConversion.hornerToCoords(maxIndex, sizes);
+        for(int n = 0; n < batchSize; n++){
+            pool(inputs.values, n * inputTensor.values.length, outputs.values, indices, n * outputTensor.values.length);
+        }
 
-            //Start of region within base input tensor
-            int[] regionStart = i.coordIterator.getCurrentCoords();
+        return outputs;
+    }
 
-            //Coords of max, relative to base input tensor start
-            int[] coordsOfMax = ArrayUtils.addAll(regionStart, maxCoords);
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        int batchSize = outputGrads.dimSizes[outputGrads.dimSizes.length - 1];
+        Tensor inputGrads = new Tensor(ArrayUtils.appendValue(inputTensor.dimSizes, batchSize));
 
-            inputGrads.set(coordsOfMax, outputGrad.values[i.coordIterator.getCurrentCount() - 1]);
+        for(int n = 0; n < batchSize; n++){
+            unpool(outputGrads.values, batchMaxIndices, n * outputTensor.values.length, inputGrads.values, n * inputTensor.values.length);
         }
 
         return inputGrads;
     }
 
+    //Apply max function across the input starting at inputOffset, writing the results and the index (within the input) of each max from outputOffset onwards
+    private void pool(double[] input, int inputOffset, double[] output, int[] indices, int outputOffset){
+        if(planarSize == 2){
+            pool2x2(input, inputOffset, output, indices, outputOffset);
+            return;
+        }
+        if(planarSize == 3){
+            pool3x3(input, inputOffset, output, indices, outputOffset);
+            return;
+        }
+
+        for(int o = 0; o < windowStarts.length; o++){
+            int start = inputOffset + windowStarts[o];
+
+            //Index of the first occurrence of the largest value
+            double max = input[start];
+            int maxIndex = 0;
+            for(int k = 1; k < windowOffsets.length; k++){
+                if(input[start + windowOffsets[k]] > max){
+                    max = input[start + windowOffsets[k]];
+                    maxIndex = k;
+                }
+            }
+
+            indices[outputOffset + o] = windowStarts[o] + windowOffsets[maxIndex];
+            output[outputOffset + o] = max;
+        }
+    }
+
+    //Each window's elements are compared in the same order as the general path, so ties go to the same element
+    private void pool2x2(double[] input, int inputOffset, double[] output, int[] indices, int outputOffset){
+        int o = outputOffset;
+        for(int c = 0; c < channels; c++){
+            int plane = inputOffset + c * width * height;
+            for(int y = 0; y < outHeight; y++){
+                int row = plane + 2 * y * width;
+                for(int x = 0; x < outWidth; x++, o++){
+                    int i = row + 2 * x;
+
+                    //The window is read into locals once, so that each comparison only reloads the running max from a register
+                    double topRight = input[i + 1], bottom = input[i + width], bottomRight = input[i + width + 1];
+                    double max = input[i];
+                    int maxIndex = i;
+                    if(topRight > max){ max = topRight; maxIndex = i + 1; }
+                    if(bottom > max){ max = bottom; maxIndex = i + width; }
+                    if(bottomRight > max){ max = bottomRight; maxIndex = i + width + 1; }
+
+                    indices[o] = maxIndex - inputOffset;
+                    output[o] = max;
+                }
+            }
+        }
+    }
+
+    private void pool3x3(double[] input, int inputOffset, double[] output, int[] indices, int outputOffset){
+        int o = outputOffset;
+        for(int c = 0; c < channels; c++){
+            int plane = inputOffset + c * width * height;
+            for(int y = 0; y < outHeight; y++){
+                int row = plane + 2 * y * width;
+                for(int x = 0; x < outWidth; x++, o++){
+                    int i = row + 2 * x;
+
+                    double max = input[i];
+                    int maxIndex = i;
+                    for(int r = i; r <= i + 2 * width; r += width){
+                        double left = input[r], middle = input[r + 1], right = input[r + 2];
+                        if(left > max){ max = left; maxIndex = r; }
+                        if(middle > max){ max = middle; maxIndex = r + 1; }
+                        if(right > max){ max = right; maxIndex = r + 2; }
+                    }
+
+                    indices[o] = maxIndex - inputOffset;
+                    output[o] = max;
+                }
+            }
+        }
+    }
+
+    //Route the output grads (read from outputOffset onwards) back to the elements that produced each max, within inputGrads from inputOffset onwards.
+    //Grads are summed, as an element can be the max of more than one window where windows overlap.
+    private void unpool(double[] outputGrad, int[] indices, int outputOffset, double[] inputGrads, int inputOffset){
+        for(int o = 0; o < windowStarts.length; o++){
+            inputGrads[inputOffset + indices[outputOffset + o]] += outputGrad[outputOffset + o];
+        }
+    }
+
     @Override
     public int[] getOutputDims() {
         return outputTensor.dimSizes;
     }
+
+    @Override
+    public Tensor[] getParameters() {
+        return new Tensor[0];
+    }
+
+    @Override
+    public Layer replicate() {
+        return new Layer_MaxPooling(strides, sizes, inputTensor.dimSizes);
+    }
+
+    //This layer has no parameters, so only per-call state needs separating
+    @Override
+    public Layer shareParameters() {
+        return replicate();
+    }
 }
@@ -6,8 +6,15 @@ public class Layer_ReluACT implements Layer {
 
     int[] outputDims;
 
+    //Buffers for single samples. Each call overwrites them, so forwardProp and backProp return the same tensors every time.
+    Tensor output;
+    Tensor inputGrad;
+
     public Layer_ReluACT(int[] inputDims){
         outputDims = inputDims;
+
+        output = new Tensor(outputDims);
+        inputGrad = new Tensor(outputDims);
     }
 
     //How much these inputs will affect the result of softmax output
@@ -25,22 +32,71 @@ public class Layer_ReluACT implements Layer {
     @Override
     public Tensor forwardProp(Tensor input) {
         recentInput = input;
-        Tensor output = input.zeroes();
-
-        for(int i = 0; i < input.values.length; i++){
-            output.values[i] = Math.max(input.values[i], 0);
-        }
+        relu(input, output);
+        return output;
+    }
 
+    @Override
+    public Tensor infer(Tensor input) {
+        Tensor output = input.zeroes();
+        relu(input, output);
         return output;
     }
 
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
-        return outputGrad.product(derivatives(recentInput));
+        reluGradients(outputGrad, inputGrad);
+        return inputGrad;
+    }
+
+    //ReLU is applied elementwise, so a batch is treated exactly like a single sample, but written to a tensor of the batch's size
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        recentInput = inputs;
+        Tensor outputs = inputs.zeroes();
+        relu(inputs, outputs);
+        return outputs;
+    }
+
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        return infer(inputs);
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        Tensor inputGrads = outputGrads.zeroes();
+        reluGradients(outputGrads, inputGrads);
+        return inputGrads;
+    }
+
+    private void relu(Tensor input, Tensor output){
+        VectorKernels.active.relu(input.values, output.values, input.values.length);
+    }
+
+    //Deriv wrt inputs = deriv wrt outputs * derivatives of the most recent input
+    private void reluGradients(Tensor outputGrad, Tensor inputGrad){
+        VectorKernels.active.reluGradients(outputGrad.values, recentInput.values, inputGrad.values, outputGrad.values.length);
     }
 
     @Override
     public int[] getOutputDims() {
         return outputDims;
     }
+
+    @Override
+    public Tensor[] getParameters() {
+        return new Tensor[0];
+    }
+
+    @Override
+    public Layer replicate() {
+        return new Layer_ReluACT(outputDims);
+    }
+
+    //This layer has no parameters, so only per-call state needs separating
+    @Override
+    public Layer shareParameters() {
+        return replicate();
+    }
 }
@@ -5,52 +5,131 @@ public class Layer_SoftmaxACT implements Layer {
     int[] outputDims;
     Tensor recentSoftMaxInput;
 
+    //Buffers for single samples. Each call overwrites them, so forwardProp and backProp return the same tensors every time.
+    Tensor output;
+    Tensor inputGrad;
+
     public Layer_SoftmaxACT(int[] inputDims){
         outputDims = inputDims;
+
+        output = new Tensor(outputDims);
+        inputGrad = new Tensor(outputDims);
     }
 
     //How much these inputs will affect the result of softmax output
     public Tensor derivatives(Tensor input){
-        double[] output = new double[input.values.length];
+        Tensor output = input.zeroes();
+        derivatives(input.values, output.values, 0, input.values.length);
+        return output;
+    }
 
-        double expSum = 0;
+    //As above, for the sample of the given length starting at offset. The derivatives are written into output at the same position.
+    private static void derivatives(double[] input, double[] output, int offset, int length){
+        double expSum = VectorKernels.active.expSum(input, output, offset, length);
 
-        for(int i = 0; i < input.values.length; i++){
-            output[i] = Math.exp(input.values[i]);
-            expSum += output[i];
-        }
-
-        for(int i = 0; i < input.values.length; i++){
+        for(int i = offset; i < offset + length; i++){
             output[i] *= (expSum - output[i]);
         }
 
-        return new Tensor(input.dimSizes, ArrayUtils.divideAll(output, expSum * expSum));
+        double expSumSquared = expSum * expSum;
+        for(int i = offset; i < offset + length; i++){
+            output[i] /= expSumSquared;
+        }
     }
 
-    //softMax(Si) = (e^Si)/sum(e^S)
+    //softMax(Si) = (e^Si)/sum(e^S) = (e^(Si - max(S)))/sum(e^(S - max(S))), which cannot overflow
     @Override
     public Tensor forwardProp(Tensor input) {
         recentSoftMaxInput = input;
+        softmax(input.values, output.values, 0, input.values.length);
+        return output;
+    }
 
-        Tensor output = input.zeroes();
-        double expSum = 0;
+    //Apply softmax to the sample of the given length starting at offset, writing into output at the same position
+    static void softmax(double[] input, double[] output, int offset, int length){
+        double max = input[offset + VectorKernels.active.maxIndex(input, offset, length)];
+        for(int i = offset; i < offset + length; i++){
+            output[i] = input[i] - max;
+        }
+
+        double expSum = VectorKernels.active.expSum(output, output, offset, length);
 
-        for(int i = 0; i < input.values.length; i++){
-            output.values[i] = Math.exp(input.values[i]);
-            expSum += output.values[i];
+        for(int i = offset; i < offset + length; i++){
+            output[i] /= expSum;
         }
+    }
 
-        output.values = ArrayUtils.divideAll(output.values, expSum);
+    @Override
+    public Tensor infer(Tensor input) {
+        Tensor output = input.zeroes();
+        softmax(input.values, output.values, 0, input.values.length);
         return output;
     }
 
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
-        return outputGrad.product(derivatives(recentSoftMaxInput));
+        derivatives(recentSoftMaxInput.values, inputGrad.values, 0, inputGrad.values.length);
+        multiplyInPlace(outputGrad, inputGrad);
+        return inputGrad;
+    }
+
+    //Softmax is applied to each sample separately
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        recentSoftMaxInput = inputs;
+        return inferBatch(inputs);
+    }
+
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+        int sampleLength = inputs.values.length / batchSize;
+
+        Tensor outputs = inputs.zeroes();
+        for(int n = 0; n < batchSize; n++){
+            softmax(inputs.values, outputs.values, n * sampleLength, sampleLength);
+        }
+
+        return outputs;
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        int batchSize = outputGrads.dimSizes[outputGrads.dimSizes.length - 1];
+        int sampleLength = outputGrads.values.length / batchSize;
+
+        Tensor inputGrads = outputGrads.zeroes();
+        for(int n = 0; n < batchSize; n++){
+            derivatives(recentSoftMaxInput.values, inputGrads.values, n * sampleLength, sampleLength);
+        }
+        multiplyInPlace(outputGrads, inputGrads);
+
+        return inputGrads;
+    }
+
+    //Deriv wrt inputs = deriv wrt outputs * derivatives, where the derivatives have already been written into inputGrads
+    private static void multiplyInPlace(Tensor outputGrads, Tensor inputGrads){
+        VectorKernels.active.multiply(outputGrads.values, inputGrads.values, inputGrads.values, inputGrads.values.length);
     }
 
     @Override
     public int[] getOutputDims() {
         return outputDims;
     }
+
+    @Override
+    public Tensor[] getParameters() {
+        return new Tensor[0];
+    }
+
+    @Override
+    public Layer replicate() {
+        return new Layer_SoftmaxACT(outputDims);
+    }
+
+    //This layer has no parameters, so only per-call state needs separating
+    @Override
+    public Layer shareParameters() {
+        return replicate();
+    }
 }
@@ -0,0 +1,57 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**Softmax, as the output layer of a network trained with cross entropy (see Network.fuseSoftmaxCrossEntropy).
+ * The loss derivative passed to backProp is already wrt this layer's inputs (p - y, from lossDerivative), as the softmax Jacobian
+ * cancels with that of cross entropy. So backprop passes it straight through, without recalculating any exponentials or dividing by probabilities.
+ * It must not be backpropagated with any other loss derivative.*/
+public class Layer_SoftmaxCrossEntropy extends Layer_SoftmaxACT {
+
+    public Layer_SoftmaxCrossEntropy(int[] inputDims){
+        super(inputDims);
+    }
+
+    /**Categorical cross entropy of the sample at the given position in the most recent forward pass, found from its logits l with
+     * log-sum-exp: max(l) + log(sum(e^(l - max(l)))) - l_y. Unlike -log(p_y), this stays exact when p_y underflows to 0.*/
+    double loss(double[] label, int sample){
+        double[] logits = recentSoftMaxInput.values;
+        int offset = sample * label.length;
+
+        double max = logits[offset + VectorKernels.active.maxIndex(logits, offset, label.length)];
+        double expSum = 0;
+        for(int i = 0; i < label.length; i++) expSum += Math.exp(logits[offset + i] - max);
+        double logSumExp = max + Math.log(expSum);
+
+        double loss = 0;
+        for(int i = 0; i < label.length; i++){
+            if(label[i] != 0) loss += label[i] * (logSumExp - logits[offset + i]);
+        }
+        return loss;
+    }
+
+    /**Derivative of cross entropy wrt the inputs of softmax, p - y, written into lossDerivs.*/
+    static void lossDerivative(double[] label, double[] probabilities, double[] lossDerivs){
+        for(int i = 0; i < lossDerivs.length; i++){
+            lossDerivs[i] = probabilities[i] - label[i];
+        }
+    }
+
+    @Override
+    public Tensor backProp(Tensor outputGrad, double learningRate) {
+        return outputGrad;
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        return outputGrads;
+    }
+
+    @Override
+    public Layer replicate() {
+        return new Layer_SoftmaxCrossEntropy(outputDims);
+    }
+
+    @Override
+    public Layer shareParameters() {
+        return replicate();
+    }
+}
@@ -5,6 +5,11 @@ public interface LossFunction{
      Tensor calculateLoss(double[] expectedOutput, double[] actualOutput);
      Tensor calculateLossDerivative(double[] expectedOutput, double[] actualOutput);
 
+     /**As calculateLossDerivative, but writing the derivatives into lossDerivs rather than a new tensor.*/
+     default void calculateLossDerivative(double[] expectedOutput, double[] actualOutput, double[] lossDerivs){
+          System.arraycopy(calculateLossDerivative(expectedOutput, actualOutput).values, 0, lossDerivs, 0, lossDerivs.length);
+     }
+
      LossFunction crossEntropy = new LossFunction() {
         @Override
         public Tensor calculateLoss(double[] expectedOutput, double[] actualOutput) {
@@ -21,13 +26,17 @@ public interface LossFunction{
         @Override
         public Tensor calculateLossDerivative(double[] expectedOutput, double[] actualOutput) {
             double[] lossDerivs = new double[expectedOutput.length];
+            calculateLossDerivative(expectedOutput, actualOutput, lossDerivs);
+
+            return new Tensor(new int[] {lossDerivs.length}, lossDerivs);
+        }
 
+        @Override
+        public void calculateLossDerivative(double[] expectedOutput, double[] actualOutput, double[] lossDerivs) {
             for(int i = 0; i < lossDerivs.length; i++){
                 if(expectedOutput[i] == 1) lossDerivs[i] = -1.0 / actualOutput[i];
                 else  lossDerivs[i] = 1.0 / (1 - actualOutput[i]);
             }
-
-            return new Tensor(new int[] {lossDerivs.length}, lossDerivs);
         }
     };
 
@@ -0,0 +1,266 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**Cache-blocked matrix multiplication over flat, row-major double arrays.
+ * Each element is accumulated in ascending k order, so results match a naive inner product exactly.*/
+public final class MatrixUtils {
+
+    //Block sizes chosen so that a block of B (BLOCK_K x BLOCK_N doubles) comfortably fits in L2 cache
+    private static final int BLOCK_M = 64;
+    private static final int BLOCK_N = 256;
+    private static final int BLOCK_K = 128;
+
+    private MatrixUtils(){}
+
+    /**C += A * B, where A is m x k, B is k x n and C is m x n.*/
+    public static void gemm(double[] a, double[] b, double[] c, int m, int n, int k){
+        gemm(a, 0, b, 0, c, 0, m, n, k);
+    }
+
+    /**C += A * B, where each matrix starts at the given offset within its array.*/
+    public static void gemm(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int m, int n, int k){
+        for(int i0 = 0; i0 < m; i0 += BLOCK_M){
+            int iMax = Math.min(i0 + BLOCK_M, m);
+
+            for(int p0 = 0; p0 < k; p0 += BLOCK_K){
+                int pMax = Math.min(p0 + BLOCK_K, k);
+
+                for(int j0 = 0; j0 < n; j0 += BLOCK_N){
+                    int jMax = Math.min(j0 + BLOCK_N, n);
+
+                    int i = i0;
+                    //Register block of four rows of C, so that each loaded element of B is used four times
+                    for(; i + 3 < iMax; i += 4){
+                        int c0 = cOff + i * n, c1 = c0 + n, c2 = c1 + n, c3 = c2 + n;
+                        int a0Row = aOff + i * k, a1Row = a0Row + k, a2Row = a1Row + k, a3Row = a2Row + k;
+
+                        for(int p = p0; p < pMax; p++){
+                            double a0 = a[a0Row + p], a1 = a[a1Row + p], a2 = a[a2Row + p], a3 = a[a3Row + p];
+                            int bRow = bOff + p * n;
+
+                            for(int j = j0; j < jMax; j++){
+                                double bVal = b[bRow + j];
+                                c[c0 + j] += a0 * bVal;
+                                c[c1 + j] += a1 * bVal;
+                                c[c2 + j] += a2 * bVal;
+                                c[c3 + j] += a3 * bVal;
+                            }
+                        }
+                    }
+
+                    //Remaining rows
+                    for(; i < iMax; i++){
+                        int cRow = cOff + i * n;
+                        int aRow = aOff + i * k;
+
+                        for(int p = p0; p < pMax; p++){
+                            double aVal = a[aRow + p];
+                            int bRow = bOff + p * n;
+
+                            for(int j = j0; j < jMax; j++){
+                                c[cRow + j] += aVal * b[bRow + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**C += A^T * B, where A is k x m, B is k x n and C is m x n.*/
+    public static void gemmTransposeA(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int m, int n, int k){
+        for(int i0 = 0; i0 < m; i0 += BLOCK_M){
+            int iMax = Math.min(i0 + BLOCK_M, m);
+
+            for(int p0 = 0; p0 < k; p0 += BLOCK_K){
+                int pMax = Math.min(p0 + BLOCK_K, k);
+
+                for(int j0 = 0; j0 < n; j0 += BLOCK_N){
+                    int jMax = Math.min(j0 + BLOCK_N, n);
+
+                    int i = i0;
+                    //Register block of four rows of C, so that each loaded element of B is used four times
+                    for(; i + 3 < iMax; i += 4){
+                        int c0 = cOff + i * n, c1 = c0 + n, c2 = c1 + n, c3 = c2 + n;
+
+                        for(int p = p0; p < pMax; p++){
+                            int aCol = aOff + p * m + i;
+                            double a0 = a[aCol], a1 = a[aCol + 1], a2 = a[aCol + 2], a3 = a[aCol + 3];
+                            int bRow = bOff + p * n;
+
+                            for(int j = j0; j < jMax; j++){
+                                double bVal = b[bRow + j];
+                                c[c0 + j] += a0 * bVal;
+                                c[c1 + j] += a1 * bVal;
+                                c[c2 + j] += a2 * bVal;
+                                c[c3 + j] += a3 * bVal;
+                            }
+                        }
+                    }
+
+                    //Remaining rows
+                    for(; i < iMax; i++){
+                        int cRow = cOff + i * n;
+
+                        for(int p = p0; p < pMax; p++){
+                            double aVal = a[aOff + p * m + i];
+                            int bRow = bOff + p * n;
+
+                            for(int j = j0; j < jMax; j++){
+                                c[cRow + j] += aVal * b[bRow + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**C += A * B^T, where A is m x k, B is n x k and C is m x n.*/
+    public static void gemmTransposeB(double[] a, double[] b, double[] c, int m, int n, int k){
+        gemmTransposeB(a, 0, b, 0, c, 0, m, n, k);
+    }
+
+    /**C += A * B^T, where each matrix starts at the given offset within its array.*/
+    public static void gemmTransposeB(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int m, int n, int k){
+        for(int i0 = 0; i0 < m; i0 += BLOCK_M){
+            int iMax = Math.min(i0 + BLOCK_M, m);
+
+            for(int j0 = 0; j0 < n; j0 += BLOCK_M){
+                int jMax = Math.min(j0 + BLOCK_M, n);
+
+                //Blocking over k keeps the rows of A and B being dotted together resident in cache
+                for(int p0 = 0; p0 < k; p0 += BLOCK_N){
+                    int pMax = Math.min(p0 + BLOCK_N, k);
+
+                    for(int i = i0; i < iMax; i++){
+                        int aRow = aOff + i * k;
+                        int cRow = cOff + i * n;
+
+                        int j = j0;
+                        //Register block of four columns of C, so that each loaded element of A is used four times
+                        for(; j + 3 < jMax; j += 4){
+                            int b0 = bOff + j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                            double s0 = c[cRow + j], s1 = c[cRow + j + 1], s2 = c[cRow + j + 2], s3 = c[cRow + j + 3];
+
+                            for(int p = p0; p < pMax; p++){
+                                double aVal = a[aRow + p];
+                                s0 += aVal * b[b0 + p];
+                                s1 += aVal * b[b1 + p];
+                                s2 += aVal * b[b2 + p];
+                                s3 += aVal * b[b3 + p];
+                            }
+
+                            c[cRow + j] = s0;
+                            c[cRow + j + 1] = s1;
+                            c[cRow + j + 2] = s2;
+                            c[cRow + j + 3] = s3;
+                        }
+
+                        //Remaining columns
+                        for(; j < jMax; j++){
+                            int bRow = bOff + j * k;
+                            double s = c[cRow + j];
+
+                            for(int p = p0; p < pMax; p++){
+                                s += a[aRow + p] * b[bRow + p];
+                            }
+
+                            c[cRow + j] = s;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**y += A * x, where A is m x n, x has n elements and y has m elements.
+     * Rows are register-blocked in fours, so each loaded element of x is used four times, and columns are blocked so the slice of x in use stays in L1 cache.*/
+    public static void gemv(double[] a, double[] x, double[] y, int m, int n){
+        for(int j0 = 0; j0 < n; j0 += BLOCK_K){
+            int jMax = Math.min(j0 + BLOCK_K, n);
+
+            int i = 0;
+            for(; i + 3 < m; i += 4){
+                int a0 = i * n, a1 = a0 + n, a2 = a1 + n, a3 = a2 + n;
+                double y0 = y[i], y1 = y[i + 1], y2 = y[i + 2], y3 = y[i + 3];
+
+                for(int j = j0; j < jMax; j++){
+                    double xVal = x[j];
+                    y0 += a[a0 + j] * xVal;
+                    y1 += a[a1 + j] * xVal;
+                    y2 += a[a2 + j] * xVal;
+                    y3 += a[a3 + j] * xVal;
+                }
+
+                y[i] = y0; y[i + 1] = y1; y[i + 2] = y2; y[i + 3] = y3;
+            }
+
+            //Remaining rows
+            for(; i < m; i++){
+                int aRow = i * n;
+                double yVal = y[i];
+                for(int j = j0; j < jMax; j++){
+                    yVal += a[aRow + j] * x[j];
+                }
+                y[i] = yVal;
+            }
+        }
+    }
+
+    /**In a single pass over A (m x n), accumulates y += A^T * g, then applies the rank-1 update A += alpha * g * x^T.
+     * Each element of A is read into y before it is updated, so y is computed from A as it was before the update.
+     * This is the backward pass of a fully connected layer: y is the input grad, g the output grad and x the input.*/
+    public static void gemvTransposeRank1(double[] a, double[] g, double[] y, double[] x, double alpha, int m, int n){
+        for(int j0 = 0; j0 < n; j0 += BLOCK_K){
+            int jMax = Math.min(j0 + BLOCK_K, n);
+
+            int i = 0;
+            //Register block of four rows, so that each element of y and x is loaded once for four rows of A
+            for(; i + 3 < m; i += 4){
+                int a0 = i * n, a1 = a0 + n, a2 = a1 + n, a3 = a2 + n;
+                double g0 = g[i], g1 = g[i + 1], g2 = g[i + 2], g3 = g[i + 3];
+                double u0 = alpha * g0, u1 = alpha * g1, u2 = alpha * g2, u3 = alpha * g3;
+
+                for(int j = j0; j < jMax; j++){
+                    double xVal = x[j];
+                    double yVal = y[j];
+
+                    yVal += a[a0 + j] * g0;
+                    a[a0 + j] += u0 * xVal;
+                    yVal += a[a1 + j] * g1;
+                    a[a1 + j] += u1 * xVal;
+                    yVal += a[a2 + j] * g2;
+                    a[a2 + j] += u2 * xVal;
+                    yVal += a[a3 + j] * g3;
+                    a[a3 + j] += u3 * xVal;
+
+                    y[j] = yVal;
+                }
+            }
+
+            //Remaining rows
+            for(; i < m; i++){
+                int aRow = i * n;
+                double gVal = g[i];
+                double u = alpha * gVal;
+
+                for(int j = j0; j < jMax; j++){
+                    y[j] += a[aRow + j] * gVal;
+                    a[aRow + j] += u * x[j];
+                }
+            }
+        }
+    }
+
+    /**Rank-1 update A += alpha * g * x^T, where A is m x n.*/
+    public static void rank1(double[] a, double[] g, double[] x, double alpha, int m, int n){
+        for(int i = 0; i < m; i++){
+            int aRow = i * n;
+            double u = alpha * g[i];
+
+            for(int j = 0; j < n; j++){
+                a[aRow + j] += u * x[j];
+            }
+        }
+    }
+}
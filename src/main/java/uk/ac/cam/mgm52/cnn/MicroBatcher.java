@@ -0,0 +1,138 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Coalesces concurrent predictions into batches, so that many callers share each pass through the network.
+ * A batch is run as soon as it reaches the max batch size, or once its first prediction has waited the max wait.
+ * Every batch is run by the batcher's own thread, which is the only thread to touch the network.*/
+class MicroBatcher implements AutoCloseable {
+
+    //A prediction waiting to be batched
+    private static class Pending {
+        final double[] input;
+        final CompletableFuture<double[]> output = new CompletableFuture<>();
+
+        Pending(double[] input){
+            this.input = input;
+        }
+    }
+
+    private final Network net;
+    private final int[] inputDims;
+    private final int inputLength;
+
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread batcher;
+    private volatile boolean running = true;
+
+    //Number of batches run of each size, indexed by size
+    private final AtomicLongArray batchSizes;
+
+    /**@param maxWaitMicros longest a prediction waits for others to join its batch*/
+    MicroBatcher(Network net, int maxBatchSize, long maxWaitMicros){
+        this.net = net;
+        inputDims = net.getInputDims();
+        inputLength = ArrayUtils.product(inputDims);
+        this.maxBatchSize = maxBatchSize;
+        maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        batchSizes = new AtomicLongArray(maxBatchSize + 1);
+
+        batcher = new Thread(this::run, "MicroBatcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**Queue an input for prediction.
+     * @return the network's output, once the input's batch has been run
+     */
+    CompletableFuture<double[]> submit(double[] input){
+        if(input.length != inputLength) throw new IllegalArgumentException("Expected " + inputLength + " input values but got " + input.length);
+        if(!running) throw new IllegalStateException("MicroBatcher has been closed");
+
+        Pending pending = new Pending(input);
+        queue.add(pending);
+        //Closed while this was being queued, so the batcher may never see it
+        if(!running && queue.remove(pending)) pending.output.completeExceptionally(new IllegalStateException("MicroBatcher has been closed"));
+        return pending.output;
+    }
+
+    int getInputLength(){
+        return inputLength;
+    }
+
+    /**Number of batches that have been run of each size, indexed by size.*/
+    long[] getBatchSizeCounts(){
+        long[] counts = new long[batchSizes.length()];
+        for(int i = 0; i < counts.length; i++) counts[i] = batchSizes.get(i);
+        return counts;
+    }
+
+    private void run(){
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+
+        while(running){
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) continue;
+                batch.add(first);
+
+                //Keep collecting until the batch is full or the first prediction has waited long enough
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while(batch.size() < maxBatchSize){
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //Closed, so run whatever has been collected then stop
+                running = false;
+            }
+
+            if(!batch.isEmpty()) runBatch(batch);
+            batch.clear();
+        }
+
+        for(Pending p : queue) p.output.completeExceptionally(new IllegalStateException("MicroBatcher has been closed"));
+    }
+
+    private void runBatch(List<Pending> batch){
+        try {
+            Tensor inputs = new Tensor(ArrayUtils.appendValue(inputDims, batch.size()));
+            for(int b = 0; b < batch.size(); b++){
+                System.arraycopy(batch.get(b).input, 0, inputs.values, b * inputLength, inputLength);
+            }
+
+            //Inference only, so the network's training state is never touched
+            Tensor outputs = net.inferBatch(inputs);
+            //Counted before any caller is woken, so that a caller reading the counts sees its own batch
+            batchSizes.incrementAndGet(batch.size());
+            for(int b = 0; b < batch.size(); b++){
+                batch.get(b).output.complete(outputs.getSlice(b).values);
+            }
+        } catch (RuntimeException e) {
+            for(Pending p : batch) p.output.completeExceptionally(e);
+        }
+    }
+
+    /**Stops the batcher once its current batch has been run. Predictions still queued fail.*/
+    @Override
+    public void close(){
+        running = false;
+        batcher.interrupt();
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
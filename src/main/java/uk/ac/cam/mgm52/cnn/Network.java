@@ -1,5 +1,6 @@
 package uk.ac.cam.mgm52.cnn;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 /**An array of layers, connected to each other.*/
@@ -10,8 +11,19 @@ public class Network implements Layer {
     //This is used to return output dims in instances where no layers have been added yet
     private int[] expectedInputDims;
 
+    //Holds the gradient of the loss wrt this network's output, so that a trainer need not allocate one per sample
+    private Tensor outputGrad;
+
+    //Records time and allocation per layer. Null unless profiling is enabled.
+    private LayerProfiler profiler;
+
+    //The operators actually run: layers, with adjacent layers fused where possible (see FusedLayer).
+    //Planned as soon as layers is replaced, so that running the network never writes it and infer stays safe from many threads.
+    private Layer[] plan = {};
+    private boolean fusion = true;
+
     public Network(Layer[] layers){
-        this.layers = layers;
+        setLayers(layers);
     }
 
     public Network(int... expectedInputDims){
@@ -23,15 +35,12 @@ public class Network implements Layer {
         int[] filterDims = new int[getOutputDims().length];
         Arrays.fill(filterDims, filterSize);
 
-        layers = ArrayUtils.appendValue(layers, new Layer_Convolutional(filterDims, filterCount, getOutputDims()));
-
         //Returning this allows us to make statements like "network.addconv.addmax.addfull"
-        return this;
+        return addLayer(new Layer_Convolutional(filterDims, filterCount, getOutputDims()));
     }
 
     public Network addConv(int[] filterSizes, int filterCount){
-        layers = ArrayUtils.appendValue(layers, new Layer_Convolutional(filterSizes, filterCount, getOutputDims()));
-        return this;
+        return addLayer(new Layer_Convolutional(filterSizes, filterCount, getOutputDims()));
     }
 
     //e.g. sizes {3, 3} and stride 2 applied to 5x5x5x tensor results in sizes {3, 3, 1} and strides {2, 2, 1}
@@ -40,51 +49,276 @@ public class Network implements Layer {
         int[] strides = new int[sizes.length];
         Arrays.fill(strides, stride);
 
-        layers = ArrayUtils.appendValue(layers, new Layer_MaxPooling( strides, sizes, getOutputDims()));
-        return this;
+        return addLayer(new Layer_MaxPooling( strides, sizes, getOutputDims()));
     }
 
     public Network addFull(int outputLength){
-        layers = ArrayUtils.appendValue(layers, new Layer_FullyConnected( outputLength, getOutputDims()));
-        return this;
+        return addLayer(new Layer_FullyConnected( outputLength, getOutputDims()));
     }
 
     public Network addSoftmax(){
-        layers = ArrayUtils.appendValue(layers, new Layer_SoftmaxACT(getOutputDims()));
-        return this;
+        return addLayer(new Layer_SoftmaxACT(getOutputDims()));
     }
 
     public Network addReLU(){
-        layers = ArrayUtils.appendValue(layers, new Layer_ReluACT(getOutputDims()));
+        return addLayer(new Layer_ReluACT(getOutputDims()));
+    }
+
+    //For layers without a builder of their own, e.g. ones read back from a checkpoint
+    Network addLayer(Layer layer){
+        setLayers(ArrayUtils.appendValue(layers, layer));
         return this;
     }
 
+    private void setLayers(Layer[] layers){
+        this.layers = layers;
+        plan = FusedLayer.plan(layers);
+    }
+
     @Override
     public Tensor forwardProp(Tensor input) {
         Tensor output = input;
 
-        for(Layer l : layers){
-            output = l.forwardProp(output);
+        Layer[] steps = steps();
+        for(int i = 0; i < steps.length; i++){
+            TrainingEvents.LayerPass event = TrainingEvents.LayerPass.start();
+            if(profiler != null) profiler.begin();
+
+            output = steps[i].forwardProp(output);
+
+            if(profiler != null) profiler.end(i, LayerProfiler.FORWARD);
+            event.finish(i, steps[i], LayerProfiler.FORWARD, 1);
+        }
+
+        return output;
+    }
+
+    /**Predict the output for a single sample. Unlike forwardProp, this keeps no state for backprop and returns a new tensor,
+     * so it is safe to call from many threads at once, as long as the network is not being trained at the same time.*/
+    @Override
+    public Tensor infer(Tensor input) {
+        Tensor output = input;
+
+        for(Layer l : steps()){
+            output = l.infer(output);
         }
 
         return output;
     }
 
+    /**Predict the outputs for a batch of samples, with the same guarantees as infer. The last dimension of inputs indexes each sample.*/
+    @Override
+    public Tensor inferBatch(Tensor inputs) {
+        Tensor outputs = inputs;
+
+        for(Layer l : steps()){
+            outputs = l.inferBatch(outputs);
+        }
+
+        return outputs;
+    }
+
     @Override
     public Tensor backProp(Tensor outputGrad, double learningRate) {
 
         Tensor inputGrad = outputGrad;
 
-        for(int i=layers.length-1; i >= 0; i--){
-            inputGrad = layers[i].backProp(inputGrad, learningRate);
+        Layer[] steps = steps();
+        for(int i=steps.length-1; i >= 0; i--){
+            TrainingEvents.LayerPass event = TrainingEvents.LayerPass.start();
+            if(profiler != null) profiler.begin();
+
+            inputGrad = steps[i].backProp(inputGrad, learningRate);
+
+            if(profiler != null) profiler.end(i, LayerProfiler.BACKWARD);
+            event.finish(i, steps[i], LayerProfiler.BACKWARD, 1);
         }
 
         return inputGrad;
     }
 
+    @Override
+    public Tensor forwardPropBatch(Tensor inputs) {
+        Tensor outputs = inputs;
+        int batchSize = inputs.dimSizes[inputs.dimSizes.length - 1];
+
+        Layer[] steps = steps();
+        for(int i = 0; i < steps.length; i++){
+            TrainingEvents.LayerPass event = TrainingEvents.LayerPass.start();
+            if(profiler != null) profiler.begin();
+
+            outputs = steps[i].forwardPropBatch(outputs);
+
+            if(profiler != null) profiler.end(i, LayerProfiler.FORWARD);
+            event.finish(i, steps[i], LayerProfiler.FORWARD, batchSize);
+        }
+
+        return outputs;
+    }
+
+    @Override
+    public Tensor backPropBatch(Tensor outputGrads, double learningRate) {
+        Tensor inputGrads = outputGrads;
+        int batchSize = outputGrads.dimSizes[outputGrads.dimSizes.length - 1];
+
+        Layer[] steps = steps();
+        for(int i=steps.length-1; i >= 0; i--){
+            TrainingEvents.LayerPass event = TrainingEvents.LayerPass.start();
+            if(profiler != null) profiler.begin();
+
+            inputGrads = steps[i].backPropBatch(inputGrads, learningRate);
+
+            if(profiler != null) profiler.end(i, LayerProfiler.BACKWARD);
+            event.finish(i, steps[i], LayerProfiler.BACKWARD, batchSize);
+        }
+
+        return inputGrads;
+    }
+
+    /**Replace this network's final softmax with a Layer_SoftmaxCrossEntropy, which backpropagates softmax and cross entropy together.
+     * Called while building a network, this opts it into fused training: Trainer then trains it with LossFunction.crossEntropy by
+     * passing p - y straight to the softmax inputs, and reports its loss from the logits with log-sum-exp. Its outputs are unchanged.
+     * @throws IllegalStateException if this network does not end with softmax
+     */
+    public Network fuseSoftmaxCrossEntropy(){
+        Layer last = layers.length > 0 ? layers[layers.length - 1] : null;
+        if(last instanceof Layer_SoftmaxCrossEntropy) return this;
+        if(!(last instanceof Layer_SoftmaxACT)) throw new IllegalStateException("Only a network ending with softmax can fuse it with cross entropy");
+
+        Layer[] fused = layers.clone();
+        fused[fused.length - 1] = new Layer_SoftmaxCrossEntropy(last.getOutputDims());
+        setLayers(fused);
+        return this;
+    }
+
+    /**Whether fuseSoftmaxCrossEntropy has been applied to this network, so that it must be trained with LossFunction.crossEntropy.*/
+    public boolean isSoftmaxCrossEntropyFused(){
+        return layers.length > 0 && layers[layers.length - 1] instanceof Layer_SoftmaxCrossEntropy;
+    }
+
+    //Layers are run one by one while profiling, so that each is timed separately
+    private Layer[] steps(){
+        return !fusion || profiler != null ? layers : plan;
+    }
+
+    /**Turn fusing of adjacent layers (see FusedLayer) on or off. It is on by default.*/
+    public void setFusion(boolean enabled){
+        fusion = enabled;
+    }
+
+    /**Choose how every convolutional layer applies its filters. Layers that do not support algorithm keep using DIRECT.*/
+    public void setConvolutionAlgorithm(ConvolutionAlgorithm algorithm){
+        for(Layer l : layers){
+            if(!(l instanceof Layer_Convolutional)) continue;
+
+            Layer_Convolutional conv = (Layer_Convolutional) l;
+            conv.setAlgorithm(algorithm == ConvolutionAlgorithm.WINOGRAD && !conv.supportsWinograd() ? ConvolutionAlgorithm.DIRECT : algorithm);
+        }
+    }
+
+    /**The operators this network runs, one per line, with the shape of each one's input and output.*/
+    public String describePlan(){
+        StringBuilder description = new StringBuilder();
+        int[] dims = getInputDims();
+
+        Layer[] steps = steps();
+        for(int i = 0; i < steps.length; i++){
+            String name = steps[i] instanceof FusedLayer ? "fused " + steps[i] : steps[i].getClass().getSimpleName();
+            description.append(i).append(": ").append(name).append(' ')
+                    .append(dimsString(dims)).append(" -> ").append(dimsString(steps[i].getOutputDims())).append('\n');
+            dims = steps[i].getOutputDims();
+        }
+
+        return description.toString();
+    }
+
+    private static String dimsString(int[] dims){
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i < dims.length; i++) s.append(i > 0 ? "x" : "").append(dims[i]);
+        return s.toString();
+    }
+
+    /**Start or stop recording the time and allocation of each layer during forward and back propagation.
+     * Enabling profiling starts a new profiler for the layers added so far.*/
+    public void setProfiling(boolean enabled){
+        profiler = enabled ? new LayerProfiler(layers) : null;
+    }
+
+    /**The profiler recording this network's layers, or null if profiling is disabled.*/
+    public LayerProfiler getProfiler(){
+        return profiler;
+    }
+
+    /**Returns a tensor the size of this network's output, reused across calls, for a trainer to write the loss gradient into.*/
+    Tensor getOutputGradBuffer(){
+        if(outputGrad == null || !Arrays.equals(outputGrad.dimSizes, getOutputDims())) outputGrad = new Tensor(getOutputDims());
+        return outputGrad;
+    }
+
+    /**Save this network's layers and parameters to a binary checkpoint, which load reads back exactly.*/
+    public void save(String path) throws IOException {
+        Checkpoint.save(this, path);
+    }
+
+    /**Read a network saved with save.*/
+    public static Network load(String path) throws IOException {
+        return Checkpoint.load(path);
+    }
+
+    /**Dims of the input this network expects*/
+    public int[] getInputDims(){
+        if(expectedInputDims != null || layers.length == 0) return expectedInputDims;
+
+        Layer first = layers[0];
+        if(first instanceof Layer_Convolutional) return ((Layer_Convolutional) first).inputDims;
+        if(first instanceof Layer_MaxPooling) return ((Layer_MaxPooling) first).inputTensor.dimSizes;
+        if(first instanceof Layer_FullyConnected) return ((Layer_FullyConnected) first).expectedInputSizes;
+        if(first instanceof Network) return ((Network) first).getInputDims();
+        //Activations keep the shape of their input
+        return first.getOutputDims();
+    }
+
     @Override
     public int[] getOutputDims() {
         if(layers.length == 0) return expectedInputDims;
         else return layers[layers.length - 1].getOutputDims();
     }
+
+    //Parameters of every layer, in layer order
+    @Override
+    public Tensor[] getParameters() {
+        Tensor[] parameters = {};
+
+        for(Layer l : layers){
+            for(Tensor p : l.getParameters()) parameters = ArrayUtils.appendValue(parameters, p);
+        }
+
+        return parameters;
+    }
+
+    @Override
+    public Network replicate() {
+        Layer[] copies = new Layer[layers.length];
+        for(int i = 0; i < layers.length; i++){
+            copies[i] = layers[i].replicate();
+        }
+
+        Network copy = new Network(copies);
+        copy.expectedInputDims = expectedInputDims;
+        copy.fusion = fusion;
+        return copy;
+    }
+
+    @Override
+    public Network shareParameters() {
+        Layer[] views = new Layer[layers.length];
+        for(int i = 0; i < layers.length; i++){
+            views[i] = layers[i].shareParameters();
+        }
+
+        Network view = new Network(views);
+        view.expectedInputDims = expectedInputDims;
+        view.fusion = fusion;
+        return view;
+    }
 }
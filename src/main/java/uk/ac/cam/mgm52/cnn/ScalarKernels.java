@@ -0,0 +1,70 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**VectorKernels implemented with plain loops. Results match the naive loop order exactly.*/
+final class ScalarKernels implements VectorKernels {
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double result = 0;
+        for(int i = 0; i < length; i++){
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for(int i = 0; i < length; i++){
+            y[yOffset + i] += x[xOffset + i] * alpha;
+        }
+    }
+
+    @Override
+    public void multiply(double[] a, double[] b, double[] out, int length) {
+        for(int i = 0; i < length; i++){
+            out[i] = a[i] * b[i];
+        }
+    }
+
+    @Override
+    public int maxIndex(double[] a, int offset, int length) {
+        double max = a[offset];
+        int maxIndex = 0;
+        for(int i = 1; i < length; i++){
+            if(a[offset + i] > max){
+                max = a[offset + i];
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    @Override
+    public void relu(double[] in, double[] out, int length) {
+        for(int i = 0; i < length; i++){
+            out[i] = Math.max(in[i], 0);
+        }
+    }
+
+    @Override
+    public void reluGradients(double[] outputGrad, double[] input, double[] inputGrad, int length) {
+        for(int i = 0; i < length; i++){
+            inputGrad[i] = outputGrad[i] * (input[i] > 0 ? 1 : 0);
+        }
+    }
+
+    @Override
+    public double expSum(double[] in, double[] out, int offset, int length) {
+        double sum = 0;
+        for(int i = offset; i < offset + length; i++){
+            out[i] = Math.exp(in[i]);
+            sum += out[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
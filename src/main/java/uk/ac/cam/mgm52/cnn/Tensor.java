@@ -14,6 +14,13 @@ public class Tensor {
     //Length of each dimension
     public int[] dimSizes;
 
+    //Distance between consecutive elements of each dimension within values. Cached so that indexing does not recompute it.
+    final int[] strides;
+
+    //Incremented whenever values are known to have changed, so that anything derived from values (e.g. Winograd's transformed filters)
+    //can tell when it is stale. Volatile, as parameters are updated by one thread while others read them (see HogwildTrainer).
+    private volatile int modCount = 0;
+
 
 
     /**Creates new tensor with given dimensions. Default values are zero.
@@ -22,6 +29,7 @@ public class Tensor {
     public Tensor(int... dimSizes){
         //Although it would better enforce immutability, copying values would introduce unnecessary overhead, so array is assigned as a reference.
         this.dimSizes = dimSizes;
+        this.strides = HornerConversion.strides(dimSizes);
 
         //The length of our 1-dimensional values array needs to be equivalent to the product of all dimensions
         this.values = new double[ArrayUtils.product(dimSizes)];
@@ -34,6 +42,7 @@ public class Tensor {
     public Tensor(int[] dimSizes, double[] values){
         //Although it would better enforce immutability, copying values would introduce unnecessary overhead, so arrays are assigned as references.
         this.dimSizes = dimSizes;
+        this.strides = HornerConversion.strides(dimSizes);
         this.values = values;
     }
 
@@ -138,15 +147,65 @@ public class Tensor {
 
     /**Get a value at some coordinates*/
     public double get(int... coords){
-        int index = HornerConversion.coordsToHorner(coords, dimSizes);
-        if(index >= 0 && index < values.length) return values[index];
-        //Return 0 if trying to access a coordinate beyond boundaries. This is useful for padding.
-        return 0;
+        return getFlat(offset(coords));
     }
 
     /**Get a value at some coordinates*/
     public void set(int[] coords, double val){
-        values[HornerConversion.coordsToHorner(coords, dimSizes)] = val;
+        values[offset(coords)] = val;
+    }
+
+    //Rank-specialized versions of get, set and offset. These avoid allocating a coordinate array, so are preferred in inner loops.
+
+    public double get2(int x, int y){
+        return getFlat(offset2(x, y));
+    }
+
+    public double get3(int x, int y, int z){
+        return getFlat(offset3(x, y, z));
+    }
+
+    public double get4(int x, int y, int z, int w){
+        return getFlat(offset4(x, y, z, w));
+    }
+
+    public void set2(int x, int y, double val){
+        values[offset2(x, y)] = val;
+    }
+
+    public void set3(int x, int y, int z, double val){
+        values[offset3(x, y, z)] = val;
+    }
+
+    public void set4(int x, int y, int z, int w, double val){
+        values[offset4(x, y, z, w)] = val;
+    }
+
+    /**Index within values of some coordinates.*/
+    public int offset(int[] coords){
+        int index = 0;
+        for(int i = 0; i < coords.length; i++){
+            index += coords[i] * strides[i];
+        }
+        return index;
+    }
+
+    public int offset2(int x, int y){
+        return x + y * strides[1];
+    }
+
+    public int offset3(int x, int y, int z){
+        return x + y * strides[1] + z * strides[2];
+    }
+
+    public int offset4(int x, int y, int z, int w){
+        return x + y * strides[1] + z * strides[2] + w * strides[3];
+    }
+
+    //Value at an index within values, or 0 if the index is beyond boundaries. This is useful for padding.
+    private double getFlat(int index){
+        if(index >= 0 && index < values.length) return values[index];
+        return 0;
     }
 
     /**Returns tensor with opposite corners at corner1 and corner2
@@ -162,23 +221,82 @@ public class Tensor {
         //Create new tensor representing the region...
         Tensor region = new Tensor(newDimSizes);
 
-        //Use iterator to assign each value
-        for (CoordUtils.CoordIterator i = new CoordUtils.CoordIterator(corner1, corner2); i.hasNext(); ) {
-            int[] coords = i.next();
-            //Iterator's currentIndex value corresponds to index within region
-            region.values[i.getCurrentCount()-1] = get(coords);
+        //Use cursor to assign each value
+        CoordUtils.CoordCursor i = new CoordUtils.CoordCursor(corner1, corner2, strides);
+        while(i.advance()){
+            //Cursor's currentCount value corresponds to index within region
+            region.values[i.getCurrentCount()-1] = getFlat(i.getFlatIndex());
         }
 
         return region;
     }
 
+    /**Returns a view onto the region with opposite corners at corner1 and corner2. Nothing is copied; the view shares this tensor's values.
+     * @param corner1 First corner of region. A list of integer coordinates.
+     * @param corner2 Second corner of region. A list of integer coordinates.
+     */
+    public TensorView getRegionView(int[] corner1, int[] corner2){
+        int[] newDimSizes = new int[corner1.length];
+        int[] minCorner = new int[corner1.length];
+        for(int i = 0; i < newDimSizes.length; i++){
+            newDimSizes[i] = Math.abs(corner2[i] - corner1[i]) + 1;
+            minCorner[i] = Math.min(corner1[i], corner2[i]);
+        }
+
+        return new TensorView(this, newDimSizes, minCorner);
+    }
+
     /**Elementwise addition between two tensors. Each element of t is multiplied by "factor" first.*/
     public Tensor add(Tensor t, double factor){
-        double[] newVals = new double[values.length];
+        double[] newVals = values.clone();
+        VectorKernels.active.axpy(factor, t.values, 0, newVals, 0, values.length);
+        return new Tensor(dimSizes, newVals);
+    }
+
+    /**Elementwise addition in place, where each element of t is multiplied by "factor" first (the BLAS operation y = a*x + y).
+     * Unlike add, the values array is kept, so anything sharing this tensor sees the update.*/
+    public void axpy(double factor, Tensor t){
+        VectorKernels.active.axpy(factor, t.values, 0, values, 0, values.length);
+        modCount++;
+    }
+
+    /**Multiplies every element by factor, in place (the BLAS operation x = a*x).*/
+    public void scale(double factor){
         for(int i = 0; i < values.length; i ++){
-            newVals[i] = values[i] + t.values[i] * factor;
+            values[i] *= factor;
         }
-        return new Tensor(dimSizes, newVals);
+        modCount++;
+    }
+
+    /**Sets every element to val, in place.*/
+    public void fill(double val){
+        Arrays.fill(values, val);
+        modCount++;
+    }
+
+    /**Copies this tensor's values into dest, which must have at least as many elements. dest keeps its own values array.*/
+    public void copyInto(Tensor dest){
+        System.arraycopy(values, 0, dest.values, 0, values.length);
+        dest.modCount++;
+    }
+
+    /**Fused multiply-add in place: each element of a is multiplied by the corresponding element of b, then added to this tensor's element.*/
+    public void fma(Tensor a, Tensor b){
+        for(int i = 0; i < values.length; i ++){
+            values[i] += a.values[i] * b.values[i];
+        }
+        modCount++;
+    }
+
+    /**Records that values have been written to directly, invalidating any cached copies.*/
+    public void markModified(){
+        modCount++;
+    }
+
+    /**Count of changes to values, as recorded by in-place operations and markModified.
+     * Anything derived from values is still valid while this is unchanged.*/
+    int getModCount(){
+        return modCount;
     }
 
     /**Equal Tensors are defined as having the same dimension sizes & values.*/
@@ -188,11 +306,7 @@ public class Tensor {
 
     /**Multiply each element of t1 with a corresponding element of t2, then sum these values.*/
     public double innerProduct(Tensor t){
-        double result = 0;
-        for(int i = 0; i < t.values.length; i++){
-            result += values[i] * t.values[i];
-        }
-        return result;
+        return VectorKernels.active.dot(values, 0, t.values, 0, t.values.length);
     }
 
     /**Multiply each element of t1 with a corresponding element of t2.*/
@@ -238,6 +352,34 @@ public class Tensor {
         return new Tensor(newDimSizes, newValues);
     }
 
+    /**Stacks equally sized tensors along a new last dimension, e.g. to form a batch of samples.
+     * @param tensors tensors to stack. All must have the same dimension sizes.
+     * @return tensor with dimensions (tensors[0] dims..., tensors.length)
+     */
+    public static Tensor stack(Tensor... tensors){
+        int sliceLength = tensors[0].values.length;
+        Tensor stacked = new Tensor(ArrayUtils.appendValue(tensors[0].dimSizes, tensors.length));
+
+        for(int i = 0; i < tensors.length; i++){
+            System.arraycopy(tensors[i].values, 0, stacked.values, i * sliceLength, sliceLength);
+        }
+
+        return stacked;
+    }
+
+    /**Returns a copy of one slice along the last dimension, e.g. a single sample from a batch.*/
+    public Tensor getSlice(int index){
+        int[] sliceDims = getFirstDimsCopy(dimSizes.length - 1);
+        int sliceLength = values.length / dimSizes[dimSizes.length - 1];
+
+        return new Tensor(sliceDims, Arrays.copyOfRange(values, index * sliceLength, (index + 1) * sliceLength));
+    }
+
+    /**Copies the values of t into one slice along the last dimension.*/
+    public void setSlice(int index, Tensor t){
+        System.arraycopy(t.values, 0, values, index * t.values.length, t.values.length);
+    }
+
     /**Flips a Tensor.
      * Coord at dimension d becomes dimsize[d] - 1 - coord[d]
      * @return diagonally flipped Tensor.
@@ -245,14 +387,11 @@ public class Tensor {
     public Tensor flip(){
         Tensor flippedTensor = new Tensor(dimSizes);
 
-        CoordUtils.CoordIterator i = new CoordUtils.CoordIterator(new int[] {0, 0, 0}, ArrayUtils.addAll(dimSizes, -1));
-        while(i.hasNext()){
-            int[] currentCoords = i.next();
-            int[] flippedCoords = new int[currentCoords.length];
-            for(int j = 0; j < currentCoords.length; j++){
-                flippedCoords[j] = dimSizes[j] - 1 - currentCoords[j];
-            }
-            flippedTensor.set(currentCoords, get(flippedCoords));
+        //Index of flipped coords = sum of (dimsize[d] - 1 - coord[d]) * stride[d] = (values.length - 1) - index of coords.
+        //So flipping every dimension just reverses the values array.
+        int last = values.length - 1;
+        for(int i = 0; i <= last; i++){
+            flippedTensor.values[i] = values[last - i];
         }
         return flippedTensor;
     }
@@ -264,23 +403,40 @@ public class Tensor {
         int[] bottomCorner;
         int[] topCorner;
 
-        CoordUtils.CoordIterInterface coordIterator;
+        //Size of each region, shared by every region returned by next()
+        private int[] regionDims;
+        //Flat index of each element of a region, relative to the region's first element
+        private int[] regionOffsets;
+
+        CoordUtils.CoordCursor coordIterator;
+
+        //Used by nextView. Moved onto each region in turn, rather than creating a new view each time.
+        private TensorView view;
+        private boolean padded;
 
         //Private function used by multiple similar constructors
         //Note: padding array can be any number of dimensions.
         private void setup(int[] regionSizes, int[] padding){
             int[] regionSizesCopy = regionSizes;
+            padded = Arrays.stream(padding).anyMatch(p -> p != 0);
 
             //Ensure regions are the same size by appending dimensions of length 1
             if(regionSizesCopy.length < dimSizes.length){
                 regionSizesCopy = Arrays.copyOf(regionSizes, dimSizes.length);
                 Arrays.fill(regionSizesCopy, regionSizes.length, regionSizesCopy.length, 1);
             }
+            //Dimensions beyond this tensor's rank are ignored
+            else if(regionSizesCopy.length > dimSizes.length){
+                regionSizesCopy = Arrays.copyOf(regionSizes, dimSizes.length);
+            }
 
 
             //Subtracting 1 here so that we don't have to in later iterations
             this.regionSizes = ArrayUtils.addAll(regionSizesCopy, -1);
 
+            regionDims = regionSizesCopy;
+            regionOffsets = CoordUtils.flatOffsets(regionSizesCopy, Tensor.this.strides);
+
             //Bottom corner is at origin, then displace by padding
             bottomCorner = new int[dimSizes.length];
             bottomCorner = ArrayUtils.subtractAll(bottomCorner, padding);
@@ -296,7 +452,7 @@ public class Tensor {
             setup(regionSizes, padding);
 
             //Iterate over all coordinates that a region can be formed from
-            coordIterator = new CoordUtils.CoordIterator(bottomCorner, topCorner);
+            coordIterator = new CoordUtils.CoordCursor(bottomCorner, topCorner, Tensor.this.strides);
         }
 
         //This constructor makes use of a strides array.
@@ -304,7 +460,7 @@ public class Tensor {
             setup(regionSizes, padding);
 
             //Iterate over all coordinates that a region can be formed from
-            coordIterator = new CoordUtils.StridingCoordIterator(bottomCorner, topCorner, strides);
+            coordIterator = new CoordUtils.CoordCursor(bottomCorner, topCorner, strides, Tensor.this.strides);
         }
 
         @Override
@@ -315,10 +471,28 @@ public class Tensor {
         //Return Tensor representing all values in a region.
         @Override
         public Tensor next() {
+            coordIterator.next();
+            int start = coordIterator.getFlatIndex();
+
+            //Equivalent to getRegion, but with the region's offsets worked out in advance
+            Tensor region = new Tensor(regionDims);
+            for(int k = 0; k < regionOffsets.length; k++){
+                region.values[k] = getFlat(start + regionOffsets[k]);
+            }
+            return region;
+        }
+
+        /**Move to the next region, returning it as a view onto this tensor rather than a copy.
+         * The same view object is returned by every call, so it is only valid until nextView is next called.*/
+        public TensorView nextView() {
+            if(padded) throw new IllegalStateException("Views cannot extend beyond the tensor; use next() for padded regions");
+
             int[] regionBottomCorner = coordIterator.next();
-            int[] regionTopCorner = ArrayUtils.addAll(regionBottomCorner, regionSizes);
 
-            return getRegion(regionBottomCorner, regionTopCorner);
+            if(view == null) view = new TensorView(Tensor.this, regionDims, regionBottomCorner);
+            else view.offset = coordIterator.getFlatIndex();
+
+            return view;
         }
 
 
@@ -343,10 +517,9 @@ public class Tensor {
         //Return iterator over values in tensor.
         @Override
         public ValuesIterator next() {
-            int[] regionBottomCorner = iter.coordIterator.next();
-            int[] regionTopCorner = ArrayUtils.addAll(regionBottomCorner, iter.regionSizes);
+            iter.coordIterator.next();
 
-            return new ValuesIterator(new CoordUtils.CoordIterator(regionBottomCorner, regionTopCorner));
+            return new ValuesIterator(iter.coordIterator.getFlatIndex(), iter.regionOffsets);
         }
 
 
@@ -356,27 +529,32 @@ public class Tensor {
     /**Iterates through values in the tensor.
      * Primarily used to improve performance on functions that demand large regions to be extracted.*/
     class ValuesIterator implements Iterator<Double>{
-        private CoordUtils.CoordIterator iter;
-
-        public ValuesIterator(CoordUtils.CoordIterator iter){
-            this.iter = iter;
+        //Flat index of the first value, and of each value relative to it
+        private int start;
+        private int[] offsets;
+        private int position = 0;
+
+        public ValuesIterator(int start, int[] offsets){
+            this.start = start;
+            this.offsets = offsets;
         }
 
         @Override
         public boolean hasNext() {
-            return iter.hasNext();
+            return position < offsets.length;
         }
 
         @Override
         public Double next() {
-            return get(iter.next());
+            return getFlat(start + offsets[position++]);
         }
 
         /**Multiply each element of t1 with a corresponding element of t2, then sum these values.*/
         public double innerProduct(Tensor t){
             double result = 0;
             for(int i = 0; i < t.values.length; i++){
-                result += next() * t.values[i];
+                //Read through the flat offset rather than next(), to avoid boxing each value
+                result += getFlat(start + offsets[position++]) * t.values[i];
             }
             return result;
         }
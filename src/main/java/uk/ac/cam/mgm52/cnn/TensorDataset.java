@@ -0,0 +1,39 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**A dataset over tensors that are already in memory.*/
+class TensorDataset implements Dataset {
+
+    private final Tensor[] inputs;
+    private final Tensor[] labels;
+
+    TensorDataset(Tensor[] inputs, Tensor[] labels){
+        if(inputs.length != labels.length) throw new IllegalArgumentException(inputs.length + " inputs were given with " + labels.length + " labels");
+        this.inputs = inputs;
+        this.labels = labels;
+    }
+
+    @Override
+    public int size() {
+        return inputs.length;
+    }
+
+    @Override
+    public int[] getInputDims() {
+        return inputs[0].dimSizes;
+    }
+
+    @Override
+    public int[] getLabelDims() {
+        return labels[0].dimSizes;
+    }
+
+    @Override
+    public void readInput(int index, double[] dest, int offset) {
+        System.arraycopy(inputs[index].values, 0, dest, offset, inputs[index].values.length);
+    }
+
+    @Override
+    public void readLabel(int index, double[] dest, int offset) {
+        System.arraycopy(labels[index].values, 0, dest, offset, labels[index].values.length);
+    }
+}
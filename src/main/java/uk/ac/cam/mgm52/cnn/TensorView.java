@@ -0,0 +1,150 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Arrays;
+
+/**A window onto a region of a Tensor, described by an offset and a stride for each dimension.
+ * The view shares its parent's values array, so creating or moving a view copies nothing, and writes through a view change the parent.
+ * Elements are visited in Horner order over the view's own dimensions, i.e. the same order as in a copy made by Tensor.getRegion.*/
+public class TensorView {
+
+    //The parent's values. Shared, not copied.
+    final double[] values;
+
+    //Length of each dimension of the view
+    final int[] dimSizes;
+    //Distance between consecutive elements of each dimension, within values
+    final int[] strides;
+
+    //Index within values of the view's first element
+    int offset;
+
+    //Number of elements in the view
+    final int size;
+
+    //Reused counter for iterating over dimensions above the first
+    private final int[] counter;
+
+    /**Creates a view onto a region of parent.
+     * @param dimSizes size of the region in each dimension. Must have the same rank as the parent.
+     * @param corner coordinates of the region's first element
+     */
+    TensorView(Tensor parent, int[] dimSizes, int[] corner){
+        this.values = parent.values;
+        this.dimSizes = dimSizes;
+        this.strides = parent.strides;
+
+        size = ArrayUtils.product(dimSizes);
+        counter = new int[dimSizes.length];
+        moveTo(corner);
+    }
+
+    /**Move the view so that its first element is at corner, keeping its size.*/
+    void moveTo(int[] corner){
+        offset = 0;
+        for(int d = 0; d < corner.length; d++){
+            offset += corner[d] * strides[d];
+        }
+    }
+
+    /**Get a value at some coordinates, relative to the view's first element.*/
+    public double get(int... coords){
+        return values[indexOf(coords)];
+    }
+
+    /**Set a value at some coordinates, relative to the view's first element.*/
+    public void set(int[] coords, double val){
+        values[indexOf(coords)] = val;
+    }
+
+    private int indexOf(int[] coords){
+        int index = offset;
+        for(int d = 0; d < coords.length; d++){
+            index += coords[d] * strides[d];
+        }
+        return index;
+    }
+
+    /**Get the value of the i-th element, counting in Horner order over the view's dimensions.*/
+    public double getFlat(int i){
+        return values[parentIndex(i)];
+    }
+
+    /**Index within the parent's values of the i-th element, counting in Horner order over the view's dimensions.*/
+    public int parentIndex(int i){
+        int index = offset;
+        for(int d = 0; d < dimSizes.length; d++){
+            index += (i % dimSizes[d]) * strides[d];
+            i /= dimSizes[d];
+        }
+        return index;
+    }
+
+    //Move rowStart on to the first element of the next row (a row being a run along dimension 0).
+    //Dimension 0 always has stride 1, as views are regions of a parent tensor, so each row is contiguous.
+    private int nextRow(int rowStart){
+        for(int d = 1; d < dimSizes.length; d++){
+            if(++counter[d] < dimSizes[d]) return rowStart + strides[d];
+
+            rowStart -= (dimSizes[d] - 1) * strides[d];
+            counter[d] = 0;
+        }
+        return rowStart;
+    }
+
+    /**Multiply each element of the view with the corresponding element of t (in Horner order), then sum these values.*/
+    public double innerProduct(Tensor t){
+        double result = 0;
+        int rowLength = dimSizes[0];
+        int rowStart = offset;
+        Arrays.fill(counter, 0);
+
+        for(int n = 0; n < size; n += rowLength){
+            for(int i = 0; i < rowLength; i++){
+                result += values[rowStart + i] * t.values[n + i];
+            }
+            rowStart = nextRow(rowStart);
+        }
+
+        return result;
+    }
+
+    /**Adds each element of the view, multiplied by factor, to the corresponding element of t (in Horner order).*/
+    public void addTo(Tensor t, double factor){
+        int rowLength = dimSizes[0];
+        int rowStart = offset;
+        Arrays.fill(counter, 0);
+
+        for(int n = 0; n < size; n += rowLength){
+            for(int i = 0; i < rowLength; i++){
+                t.values[n + i] += values[rowStart + i] * factor;
+            }
+            rowStart = nextRow(rowStart);
+        }
+    }
+
+    /**Index (in Horner order over the view's dimensions) of the first occurrence of the largest value.*/
+    public int maxValueIndex(){
+        int rowLength = dimSizes[0];
+        int rowStart = offset;
+        Arrays.fill(counter, 0);
+
+        double max = values[offset];
+        int maxIndex = 0;
+
+        for(int n = 0; n < size; n += rowLength){
+            for(int i = 0; i < rowLength; i++){
+                if(values[rowStart + i] > max) {max = values[rowStart + i]; maxIndex = n + i;}
+            }
+            rowStart = nextRow(rowStart);
+        }
+
+        return maxIndex;
+    }
+
+    /**Returns a compact copy of the view's values as a new Tensor.*/
+    public Tensor copy(){
+        Tensor t = new Tensor(dimSizes.clone());
+        addTo(t, 1);
+        return t;
+    }
+}
@@ -9,25 +9,57 @@ public class Trainer {
 
     double learningRate;
 
-    private LossFunction lossFun;
+    //Number of samples whose gradients are averaged into each update. A batch size of 1 updates after every sample.
+    int batchSize = 1;
 
-    private Tensor[] inputs;
-    private Tensor[] labels;
+    LossFunction lossFun;
 
-    private int epochCount = 0;
+    Dataset data;
+    //The tensors behind data, if it was given as tensors. Null otherwise.
+    Tensor[] inputs;
+    Tensor[] labels;
 
-    private int talkInterval = 500;
+    //Batches are prepared by this many background threads, which keep up to prefetchCapacity batches ready.
+    //With 0, batches are prepared by the training thread itself.
+    int prefetchThreads = 1;
+    int prefetchCapacity = 8;
+
+    int epochCount = 0;
+
+    int talkInterval = 500;
 
     private Random rand = new Random();
 
+    //Clock and total GC time at the start of the current reporting interval
+    private long intervalStartNanos;
+    private long intervalStartGcMillis;
+
 
     Trainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate){
-        this.network = network;
-        this.lossFun = lossFun;
+        this(network, lossFun, Dataset.of(inputs, labels), talkInterval, learningRate, 1);
         this.inputs = inputs;
         this.labels = labels;
+        //Tensors are already decoded, so there is too little work per sample to be worth handing between threads
+        prefetchThreads = 0;
+    }
+
+    Trainer(Network network, LossFunction lossFun, Tensor[] inputs, Tensor[] labels, int talkInterval, double learningRate, int batchSize){
+        this(network, lossFun, inputs, labels, talkInterval, learningRate);
+        this.batchSize = batchSize;
+    }
+
+    /**Train on a dataset that is read as it is needed, e.g. an IdxDataset, so that it does not have to fit in heap.*/
+    Trainer(Network network, LossFunction lossFun, Dataset data, int talkInterval, double learningRate, int batchSize){
+        this.network = network;
+        this.lossFun = lossFun;
+        //A fused softmax passes its gradient straight through, so it is only correct with the cross entropy it was fused with
+        if(network.isSoftmaxCrossEntropyFused() && lossFun != LossFunction.crossEntropy){
+            throw new IllegalArgumentException("A network that has fused softmax with cross entropy must be trained with LossFunction.crossEntropy");
+        }
+        this.data = data;
         this.talkInterval = talkInterval;
         this.learningRate = learningRate;
+        this.batchSize = batchSize;
     }
 
     /**Perform one "lap" of the training data*/
@@ -36,59 +68,193 @@ public class Trainer {
         double averageLoss = 0;
         double accuracy = 0;
 
+        //Loss and accuracy over the whole epoch are only tracked while JFR is recording epochs
+        TrainingEvents.Epoch epochEvent = new TrainingEvents.Epoch();
+        epochEvent.begin();
+        boolean trackEpoch = epochEvent.isEnabled();
+        double epochLoss = 0;
+        double epochAccuracy = 0;
+
         say("BEGINNING EPOCH " + epochCount);
+        startInterval();
+
+        //Each sample's loss, written by train or trainBatch while the network's output layer still holds its logits
+        double[] recentLosses = new double[batchSize];
 
-        //The order in which the trainer reads inputs/labels in this epoch. Randomized.
-        int[] trainOrder = ArrayUtils.randomOrderInts(0, inputs.length - 1);
+        //Samples are shuffled, read and batched in the background while the network trains
+        try(DataPipeline pipeline = new DataPipeline(data, batchSize, prefetchCapacity, prefetchThreads)){
+            int i = 0;
+            for(DataPipeline.Batch batch; (batch = pipeline.take()) != null; i += batch.size){
+                double[] losses = (talkInterval>0 || trackEpoch) ? recentLosses : null;
+                double[][] recentOutputs = (batch.size == 1) ? new double[][] {train(network, batch.inputs[0], batch.labels[0], losses, 0)} : trainBatch(batch, losses);
 
-        for(int i = 0; i < trainOrder.length; i++){
-            int j = trainOrder[i];
-            double[] recentOutput = train(inputs[j], labels[j]);
+                for(int b = 0; b < batch.size; b++){
+                    Tensor label = batch.labels[b];
+                    double[] recentOutput = recentOutputs[b];
 
-            if(talkInterval>0) {
-                averageLoss += ArrayUtils.sum(lossFun.calculateLoss(labels[j].values, recentOutput).values);
+                    if(talkInterval>0 || trackEpoch) {
+                        double loss = recentLosses[b];
+                        boolean correct = ArrayUtils.findIndexOfMax(label.values) == ArrayUtils.findIndexOfMax(recentOutput);
 
-                if(ArrayUtils.findIndexOfMax(labels[j].values) == ArrayUtils.findIndexOfMax(recentOutput)){accuracy++;}
+                        averageLoss += loss;
+                        epochLoss += loss;
+                        if(correct){accuracy++; epochAccuracy++;}
 
-                if((i+1) % talkInterval == 0){
-                    say("At input " + (i+1) + " / " + trainOrder.length + ", average loss for last " + talkInterval + " iterations is " + averageLoss/talkInterval);
-                    say("and accuracy is " + 100 * accuracy/talkInterval + "%");
-                    say("(learning rate " + learningRate  + ")");
+                        if(talkInterval>0 && (i+b+1) % talkInterval == 0){
+                            say("At input " + (i+b+1) + " / " + data.size() + ", average loss for last " + talkInterval + " iterations is " + averageLoss/talkInterval);
+                            say("and accuracy is " + 100 * accuracy/talkInterval + "%");
+                            say("(learning rate " + learningRate  + ")");
+                            reportInterval();
 
-                    averageLoss = 0;
-                    accuracy = 0;
+                            averageLoss = 0;
+                            accuracy = 0;
+                        }
+                    }
                 }
+
+                pipeline.recycle(batch);
             }
         }
 
+        epochEvent.end();
+        if(epochEvent.shouldCommit()){
+            epochEvent.epoch = epochCount;
+            epochEvent.samples = data.size();
+            epochEvent.loss = epochLoss / data.size();
+            epochEvent.accuracy = epochAccuracy / data.size();
+            epochEvent.commit();
+        }
+
         say("Completed epoch");
         say("");
     }
 
     /**Print some visual examples of the program working*/
     void printExamples(int n){
+        Tensor input = new Tensor(data.getInputDims());
+        Tensor label = new Tensor(data.getLabelDims());
+
         for(int i = 0; i < n; i++){
-            int r = rand.nextInt(inputs.length);
-            Tensor output = network.forwardProp(inputs[r]);
+            int r = rand.nextInt(data.size());
+            data.readInput(r, input.values, 0);
+            data.readLabel(r, label.values, 0);
+            input.markModified();
+            Tensor output = network.forwardProp(input);
 
             System.out.println("Given input:");
-            System.out.println(inputs[r].toImageString());
+            System.out.println(input.toImageString());
 
             System.out.println("The network predicted " + ArrayUtils.findIndexOfMax(output.values));
-            System.out.println("The actual value was " + ArrayUtils.findIndexOfMax(labels[r].values));
+            System.out.println("The actual value was " + ArrayUtils.findIndexOfMax(label.values));
 
         }
     }
 
     /**A single iteration of backprop*/
     double[] train(Tensor input, Tensor label){
-        Tensor output = network.forwardProp(input);
-        network.backProp(lossFun.calculateLossDerivative(label.values, output.values), learningRate);
+        return train(network, input, label);
+    }
+
+    /**A single iteration of backprop through net*/
+    double[] train(Network net, Tensor input, Tensor label){
+        return train(net, input, label, null, 0);
+    }
+
+    /**As above, also writing the sample's loss into losses[index], unless losses is null*/
+    double[] train(Network net, Tensor input, Tensor label, double[] losses, int index){
+        Tensor output = net.forwardProp(input);
+        if(losses != null) losses[index] = loss(net, label.values, output.values, 0);
+
+        Tensor lossDeriv = net.getOutputGradBuffer();
+        lossDerivative(net, label.values, output.values, lossDeriv.values);
+        net.backProp(lossDeriv, learningRate);
 
         return output.values;
     }
 
-    private void say(String message){
+    /**A single iteration of backprop over a mini-batch. One update is applied, using the mean gradient across the batch.
+     * @return the network's output for each sample
+     */
+    double[][] trainBatch(DataPipeline.Batch batch){
+        return trainBatch(batch, null);
+    }
+
+    /**As above, also writing each sample's loss into recentLosses, unless it is null*/
+    double[][] trainBatch(DataPipeline.Batch batch, double[] recentLosses){
+        double[][] recentOutputs = new double[batch.size][];
+        trainBatch(network, batch.stackedInputs, batch.labels, 0, batch.size, learningRate, recentOutputs, recentLosses);
+
+        return recentOutputs;
+    }
+
+    /**Forward and backpropagate indices[from..to) through net as a single batch.
+     * @param recentOutputs the network's output for each sample is written here, at the same position as its index
+     * @param recentLosses each sample's loss is written here in the same way, unless it is null
+     */
+    void trainBatch(Network net, int[] indices, int from, int to, double learningRate, double[][] recentOutputs, double[] recentLosses){
+        Tensor[] batchInputs = new Tensor[to - from];
+        Tensor[] batchLabels = new Tensor[to];
+        for(int b = from; b < to; b++){
+            batchInputs[b - from] = inputs[indices[b]];
+            batchLabels[b] = labels[indices[b]];
+        }
+
+        trainBatch(net, Tensor.stack(batchInputs), batchLabels, from, to, learningRate, recentOutputs, recentLosses);
+    }
+
+    /**Forward and backpropagate a stacked batch through net, where the batch holds the samples whose labels are batchLabels[from..to).
+     * @param recentOutputs the network's output for each sample is written here, at the same position as its label
+     */
+    void trainBatch(Network net, Tensor stackedInputs, Tensor[] batchLabels, int from, int to, double learningRate, double[][] recentOutputs){
+        trainBatch(net, stackedInputs, batchLabels, from, to, learningRate, recentOutputs, null);
+    }
+
+    /**As above, also writing each sample's loss into recentLosses at the same position as its label, unless recentLosses is null*/
+    void trainBatch(Network net, Tensor stackedInputs, Tensor[] batchLabels, int from, int to, double learningRate, double[][] recentOutputs, double[] recentLosses){
+        Tensor outputs = net.forwardPropBatch(stackedInputs);
+
+        //Each sample's loss derivs are written into one reused buffer, then copied into its slice of the batch
+        Tensor lossDerivs = outputs.zeroes();
+        Tensor lossDeriv = net.getOutputGradBuffer();
+        for(int b = from; b < to; b++){
+            recentOutputs[b] = outputs.getSlice(b - from).values;
+            if(recentLosses != null) recentLosses[b] = loss(net, batchLabels[b].values, recentOutputs[b], b - from);
+            lossDerivative(net, batchLabels[b].values, recentOutputs[b], lossDeriv.values);
+            lossDerivs.setSlice(b - from, lossDeriv);
+        }
+
+        net.backPropBatch(lossDerivs, learningRate);
+    }
+
+    //Loss of the sample at the given position in net's most recent forward pass.
+    //A fused softmax finds it from its logits, so that it stays exact even when the probability of the right class underflows.
+    private double loss(Network net, double[] label, double[] output, int sample){
+        if(net.isSoftmaxCrossEntropyFused()) return ((Layer_SoftmaxCrossEntropy) net.layers[net.layers.length - 1]).loss(label, sample);
+        return ArrayUtils.sum(lossFun.calculateLoss(label, output).values);
+    }
+
+    //Loss derivs wrt net's output. A fused softmax takes them wrt its inputs instead, where they are simply p - y.
+    private void lossDerivative(Network net, double[] label, double[] output, double[] lossDerivs){
+        if(net.isSoftmaxCrossEntropyFused()) Layer_SoftmaxCrossEntropy.lossDerivative(label, output, lossDerivs);
+        else lossFun.calculateLossDerivative(label, output, lossDerivs);
+    }
+
+    private void startInterval(){
+        intervalStartNanos = System.nanoTime();
+        intervalStartGcMillis = LayerProfiler.gcMillis();
+        if(network.getProfiler() != null) network.getProfiler().reset();
+    }
+
+    //Throughput and GC time over the last talkInterval samples, followed by the network's per-layer breakdown if it is being profiled
+    private void reportInterval(){
+        double seconds = (System.nanoTime() - intervalStartNanos) / 1e9;
+        say("(" + String.format("%.1f", talkInterval / seconds) + " samples/sec, " + (LayerProfiler.gcMillis() - intervalStartGcMillis) + "ms in GC)");
+        if(network.getProfiler() != null) say(network.getProfiler().toJson());
+
+        startInterval();
+    }
+
+    void say(String message){
         if(talkInterval>0) System.out.println(message);
     }
 
@@ -0,0 +1,194 @@
+package uk.ac.cam.mgm52.cnn;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+
+/**Java Flight Recorder events emitted during training, so that recordings can be broken down by epoch, layer, and phase.
+ * Each event is begun before the work it spans, then ended and committed after it, if JFR is recording it.
+ * Events that happen for every sample are begun with start, which allocates nothing unless they are being recorded:
+ * once JFR has instrumented an event class, the JIT can no longer remove unused instances of it.
+ * Events are named uk.ac.cam.mgm52.cnn.*, e.g. "jfr print --events uk.ac.cam.mgm52.cnn.LayerPass recording.jfr".*/
+final class TrainingEvents {
+
+    private TrainingEvents(){}
+
+    @Name("uk.ac.cam.mgm52.cnn.Epoch")
+    @Label("Epoch")
+    @Category({"CNN", "Training"})
+    @Description("One pass of a Trainer over its dataset")
+    static class Epoch extends Event {
+        @Label("Epoch")
+        int epoch;
+
+        @Label("Samples")
+        int samples;
+
+        @Label("Mean Loss")
+        double loss;
+
+        @Label("Accuracy")
+        @Percentage
+        double accuracy;
+    }
+
+    //Emitted once per layer per sample (or batch), so stack traces are left off to keep recording cheap
+    @Name("uk.ac.cam.mgm52.cnn.LayerPass")
+    @Label("Layer Pass")
+    @Category({"CNN", "Layers"})
+    @Description("Forward or backward propagation through one layer of a network")
+    @StackTrace(false)
+    static class LayerPass extends Event {
+        private static final EventType type = EventType.getEventType(LayerPass.class);
+        //Returned by start while this event is not being recorded
+        private static final LayerPass disabled = new LayerPass();
+
+        /**Begin a new event, or return one that will not be recorded if JFR is not recording this event.*/
+        static LayerPass start(){
+            if(!type.isEnabled()) return disabled;
+
+            LayerPass event = new LayerPass();
+            event.begin();
+            return event;
+        }
+
+        @Label("Layer Index")
+        int index;
+
+        //For fused layers, the first of the layers fused
+        @Label("Layer Type")
+        Class<?> layerType;
+
+        @Label("Fused Layers")
+        @Description("Every layer run by this pass, if it was fused")
+        String fusedLayers;
+
+        @Label("Direction")
+        String direction;
+
+        @Label("Batch Size")
+        int batchSize;
+
+        /**End the span and commit it, if it is being recorded.
+         * @param direction LayerProfiler.FORWARD or LayerProfiler.BACKWARD*/
+        void finish(int index, Layer layer, int direction, int batchSize){
+            if(this == disabled) return;
+            end();
+            if(!shouldCommit()) return;
+
+            this.index = index;
+            if(layer instanceof FusedLayer){
+                this.layerType = ((FusedLayer) layer).getFirstLayer().getClass();
+                this.fusedLayers = layer.toString();
+            }
+            else this.layerType = layer.getClass();
+            this.direction = direction == LayerProfiler.FORWARD ? "forward" : "backward";
+            this.batchSize = batchSize;
+            commit();
+        }
+    }
+
+    @Name("uk.ac.cam.mgm52.cnn.WeightUpdate")
+    @Label("Weight Update")
+    @Category({"CNN", "Layers"})
+    @Description("Gradient descent on the parameters of one layer")
+    @StackTrace(false)
+    static class WeightUpdate extends Event {
+        private static final EventType type = EventType.getEventType(WeightUpdate.class);
+        private static final WeightUpdate disabled = new WeightUpdate();
+
+        static WeightUpdate start(){
+            if(!type.isEnabled()) return disabled;
+
+            WeightUpdate event = new WeightUpdate();
+            event.begin();
+            return event;
+        }
+
+        @Label("Layer Type")
+        Class<?> layerType;
+
+        @Label("Parameters")
+        int parameters;
+
+        @Label("Batch Size")
+        int batchSize;
+
+        void finish(Layer layer, int parameters, int batchSize){
+            if(this == disabled) return;
+            end();
+            if(!shouldCommit()) return;
+
+            this.layerType = layer.getClass();
+            this.parameters = parameters;
+            this.batchSize = batchSize;
+            commit();
+        }
+    }
+
+    @Name("uk.ac.cam.mgm52.cnn.DatasetLoad")
+    @Label("Dataset Load")
+    @Category({"CNN", "Data"})
+    @Description("Reading samples from an IDX file into memory")
+    static class DatasetLoad extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Samples")
+        int samples;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        void finish(String path, int samples, long bytes){
+            end();
+            if(!shouldCommit()) return;
+
+            this.path = path;
+            this.samples = samples;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    @Name("uk.ac.cam.mgm52.cnn.BatchDecode")
+    @Label("Batch Decode")
+    @Category({"CNN", "Data"})
+    @Description("Decoding the inputs and labels of one batch from a dataset")
+    @StackTrace(false)
+    static class BatchDecode extends Event {
+        private static final EventType type = EventType.getEventType(BatchDecode.class);
+        private static final BatchDecode disabled = new BatchDecode();
+
+        static BatchDecode start(){
+            if(!type.isEnabled()) return disabled;
+
+            BatchDecode event = new BatchDecode();
+            event.begin();
+            return event;
+        }
+
+        @Label("Batch Size")
+        int batchSize;
+
+        @Label("Dataset Type")
+        Class<?> datasetType;
+
+        void finish(Dataset data, int batchSize){
+            if(this == disabled) return;
+            end();
+            if(!shouldCommit()) return;
+
+            this.datasetType = data.getClass();
+            this.batchSize = batchSize;
+            commit();
+        }
+    }
+}
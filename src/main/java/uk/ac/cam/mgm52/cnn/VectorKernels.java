@@ -0,0 +1,52 @@
+package uk.ac.cam.mgm52.cnn;
+
+/**Primitive loops shared by tensors and layers: dot products, axpy, elementwise products, max-reductions and ReLU.
+ * Each loop works over a range of a flat array, so that samples within a batch can be processed in place.
+ * Use VectorKernels.active, which is vectorized when the JVM provides the jdk.incubator.vector module.*/
+public interface VectorKernels {
+
+    /**Plain loops, which run on any JVM.*/
+    VectorKernels scalar = new ScalarKernels();
+
+    /**The fastest kernels available. These use the Vector API when the jdk.incubator.vector module has been added
+     * (e.g. with "--add-modules jdk.incubator.vector" on JDK 16+) and the SIMD kernels are on the classpath, and fall back to scalar otherwise.*/
+    VectorKernels active = load();
+
+    /**@return sum of a[aOffset + i] * b[bOffset + i] for i < length*/
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**y[yOffset + i] += x[xOffset + i] * alpha for i < length (the BLAS operation y = a*x + y).*/
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**out[i] = a[i] * b[i] for i < length. out may be either of the inputs.*/
+    void multiply(double[] a, double[] b, double[] out, int length);
+
+    /**@return index (relative to offset) of the first occurrence of the largest of the length values starting at offset*/
+    int maxIndex(double[] a, int offset, int length);
+
+    /**out[i] = max(in[i], 0) for i < length.*/
+    void relu(double[] in, double[] out, int length);
+
+    /**inputGrad[i] = outputGrad[i] * (input[i] > 0 ? 1 : 0) for i < length, i.e. the gradient of ReLU.*/
+    void reluGradients(double[] outputGrad, double[] input, double[] inputGrad, int length);
+
+    /**out[i] = e^in[i] for offset <= i < offset + length.
+     * @return sum of the exponentials written*/
+    double expSum(double[] in, double[] out, int offset, int length);
+
+    /**Name shown by benchmarks and logs.*/
+    String name();
+
+    //The SIMD kernels are compiled separately (src/simd), as the Vector API is an incubator module that needs JDK 16+.
+    //They are only loaded if that module is present, and any failure to link them leaves the scalar kernels in use.
+    private static VectorKernels load(){
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return scalar;
+
+        try{
+            return (VectorKernels) Class.forName("uk.ac.cam.mgm52.cnn.SimdKernels").getDeclaredConstructor().newInstance();
+        }
+        catch(ReflectiveOperationException | LinkageError e){
+            return scalar;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package uk.ac.cam.mgm52.cnn;
+
+import java.util.Arrays;
+
+/**Performs cross-correlation with 3x3 filters using Winograd's minimal filtering algorithm F(2x2, 3x3) (Lavin and Gray 2015,
+ * https://arxiv.org/abs/1509.09308). Each 2x2 tile of output is found from a 4x4 tile of input with 16 multiplies per filter,
+ * where direct cross-correlation takes 36. The transforms of the input and output tiles need only additions.
+ *
+ * All tiles of a sample are transformed first, so that the products for each of the 16 elements of a tile are one matrix multiply
+ * across every tile and filter, as for the patches of ConvolutionEngine.
+ *
+ * Filters are 3x3 across the first two dims of the input, and may span a third dim (as in Layer_Convolutional, with stride 1).
+ * Inputs of rank 2 and 3 are supported. The input gradient is also a cross-correlation, of the output gradient (padded by 2)
+ * with each filter rotated by 180 degrees, so it is found by the same algorithm.*/
+class WinogradEngine {
+
+    //Tiles of 4x4 values, stored row-major with the first dim (x) fastest
+    private static final int TILE = 16;
+
+    //Input: width, height, and planes (size of the third dim, or 1)
+    private final int width, height, planes;
+    //Size of the filters across the third dim
+    private final int filterPlanes;
+    //Output of one filter: width, height, and planes
+    private final int outWidth, outHeight, outPlanes;
+    private final int depth;
+    //Planes of output across all filters: (filter, output plane) pairs, in the order they are stored
+    private final int outputRows;
+
+    //2x2 tiles covering the output, then the input
+    private final int outputTiles, inputTiles;
+
+    //For each of the 16 elements of a transformed tile, an (output rows x planes) matrix of transformed filters (G g G^T),
+    //where row (d, z) holds filter d's plane c - z in column c, or 0. Then the same for each filter rotated by 180 degrees.
+    private final double[] filterTransforms;
+    private final double[] rotatedTransforms;
+    //Filters the transforms were made from, and the modification count they were made at
+    private double[] transformedFilters;
+    private int transformedModCount;
+
+    /**Whether filters of filterDims can be applied to inputs of inputDims by this engine.*/
+    static boolean supports(int[] inputDims, int[] filterDims){
+        return (inputDims.length == 2 || inputDims.length == 3) && filterDims.length == inputDims.length
+                && filterDims[0] == 3 && filterDims[1] == 3 && inputDims[0] >= 3 && inputDims[1] >= 3;
+    }
+
+    WinogradEngine(int[] inputDims, int[] filterDims, int depth){
+        if(!supports(inputDims, filterDims)) throw new IllegalArgumentException("Winograd convolution needs 3x3 filters over an input of rank 2 or 3");
+
+        width = inputDims[0];
+        height = inputDims[1];
+        planes = inputDims.length > 2 ? inputDims[2] : 1;
+        filterPlanes = filterDims.length > 2 ? filterDims[2] : 1;
+
+        outWidth = width - 2;
+        outHeight = height - 2;
+        outPlanes = planes - filterPlanes + 1;
+        this.depth = depth;
+        outputRows = depth * outPlanes;
+
+        outputTiles = ((outWidth + 1) / 2) * ((outHeight + 1) / 2);
+        inputTiles = ((width + 1) / 2) * ((height + 1) / 2);
+
+        filterTransforms = new double[TILE * outputRows * planes];
+        rotatedTransforms = new double[TILE * outputRows * planes];
+    }
+
+    /**Values of scratch space needed by forward and inputGradients.*/
+    int scratchSize(){
+        return TILE * (planes + outputRows) * Math.max(outputTiles, inputTiles) + TILE;
+    }
+
+    /**Transform filters, unless they are the ones last transformed and have not changed since.
+     * @param filters (depth x filter size) values, each filter stored contiguously in Horner order
+     */
+    synchronized void prepare(Tensor filters){
+        //Read before transforming, so that filters changed during the transform are transformed again by the next call
+        int modCount = filters.getModCount();
+        if(transformedFilters == filters.values && transformedModCount == modCount) return;
+
+        double[] g = new double[9];
+        double[] rotated = new double[9];
+        double[] u = new double[TILE];
+        double[] r = new double[TILE];
+        for(int d = 0; d < depth; d++){
+            for(int k = 0; k < filterPlanes; k++){
+                System.arraycopy(filters.values, (d * filterPlanes + k) * 9, g, 0, 9);
+                for(int i = 0; i < 9; i++) rotated[i] = g[8 - i];
+                transformFilter(g, u);
+                transformFilter(rotated, r);
+
+                //Filter plane k multiplies input plane z + k to produce output plane z
+                for(int z = 0; z < outPlanes; z++){
+                    int row = d * outPlanes + z;
+                    for(int t = 0; t < TILE; t++){
+                        filterTransforms[(t * outputRows + row) * planes + z + k] = u[t];
+                        rotatedTransforms[(t * outputRows + row) * planes + z + k] = r[t];
+                    }
+                }
+            }
+        }
+
+        transformedFilters = filters.values;
+        transformedModCount = modCount;
+    }
+
+    /**Apply every filter to one sample, writing (depth x output size) values into output from outputOffset onwards.*/
+    void forward(double[] input, int inputOffset, double[] output, int outputOffset, double[] scratch){
+        //Transformed input tiles, then their products with the filters, each as 16 matrices (one per element of a tile)
+        int products = TILE * planes * outputTiles;
+
+        transformTiles(input, inputOffset, width, height, planes, 0, outWidth, outHeight, scratch, 0, scratch.length - TILE);
+
+        //Each element of the transformed output tiles is the product of a matrix of transformed filters and a matrix of transformed inputs
+        Arrays.fill(scratch, products, products + TILE * outputRows * outputTiles, 0);
+        for(int t = 0; t < TILE; t++){
+            MatrixUtils.gemm(filterTransforms, t * outputRows * planes, scratch, t * planes * outputTiles,
+                    scratch, products + t * outputRows * outputTiles, outputRows, outputTiles, planes);
+        }
+
+        //Output plane z of filter d is stored at row (d, z)
+        untransformTiles(scratch, products, outputRows, outputTiles, output, outputOffset, outWidth, outHeight, scratch, scratch.length - TILE);
+    }
+
+    /**Find the derivative of loss wrt one sample's input, from the derivative wrt each of its (depth x output size) outputs.
+     * Every input grad is written, from inputOffset onwards.*/
+    void inputGradients(double[] outputGrads, int outputOffset, double[] inputGrads, int inputOffset, double[] scratch){
+        int products = TILE * outputRows * inputTiles;
+
+        //Output grads are read from 2 before each tile, so that each input sees every output it contributed to
+        transformTiles(outputGrads, outputOffset, outWidth, outHeight, outputRows, -2, width, height, scratch, 0, scratch.length - TILE);
+
+        //Input plane c sums the grads of every output row its rotated filter planes were applied to
+        Arrays.fill(scratch, products, products + TILE * planes * inputTiles, 0);
+        for(int t = 0; t < TILE; t++){
+            MatrixUtils.gemmTransposeA(rotatedTransforms, t * outputRows * planes, scratch, t * outputRows * inputTiles,
+                    scratch, products + t * planes * inputTiles, planes, inputTiles, outputRows);
+        }
+
+        untransformTiles(scratch, products, planes, inputTiles, inputGrads, inputOffset, width, height, scratch, scratch.length - TILE);
+    }
+
+    //Read the 4x4 tiles starting every 2 values from (shift, shift) of each plane, covering a (coveredWidth x coveredHeight) result.
+    //Tiles are transformed into dest as 16 (planeCount x tiles) matrices, one per element of a tile. Each tile is read into dest from tileOffset first.
+    private static void transformTiles(double[] values, int offset, int planeWidth, int planeHeight, int planeCount, int shift,
+                                       int coveredWidth, int coveredHeight, double[] dest, int destOffset, int tileOffset){
+        int tilesWide = (coveredWidth + 1) / 2, tiles = tilesWide * ((coveredHeight + 1) / 2);
+
+        for(int c = 0; c < planeCount; c++){
+            int planeOffset = offset + c * planeWidth * planeHeight;
+            for(int i = 0; i < tiles; i++){
+                readTile(values, planeOffset, planeWidth, planeHeight, 2 * (i % tilesWide) + shift, 2 * (i / tilesWide) + shift, dest, tileOffset);
+                transformInput(dest, tileOffset, dest, destOffset + c * tiles + i, planeCount * tiles);
+            }
+        }
+    }
+
+    //Inverse of transformTiles for results: transform each tile of the 16 (planeCount x tiles) matrices back into 2x2 values of its plane
+    private static void untransformTiles(double[] m, int mOffset, int planeCount, int tiles, double[] values, int offset,
+                                         int planeWidth, int planeHeight, double[] scratch, int scratchOffset){
+        int tilesWide = (planeWidth + 1) / 2;
+
+        for(int c = 0; c < planeCount; c++){
+            int planeOffset = offset + c * planeWidth * planeHeight;
+            for(int i = 0; i < tiles; i++){
+                transformOutput(m, mOffset + c * tiles + i, planeCount * tiles, scratch, scratchOffset);
+                writeTile(scratch, scratchOffset, values, planeOffset, planeWidth, planeHeight, 2 * (i % tilesWide), 2 * (i / tilesWide));
+            }
+        }
+    }
+
+    //Copy the 4x4 tile whose first element is at (x, y) of a plane. Values outside the plane are read as 0.
+    private static void readTile(double[] values, int planeOffset, int planeWidth, int planeHeight, int x, int y, double[] tile, int tileOffset){
+        if(x >= 0 && y >= 0 && x + 4 <= planeWidth && y + 4 <= planeHeight){
+            for(int r = 0; r < 4; r++){
+                System.arraycopy(values, planeOffset + (y + r) * planeWidth + x, tile, tileOffset + r * 4, 4);
+            }
+            return;
+        }
+
+        for(int r = 0; r < 4; r++){
+            for(int c = 0; c < 4; c++){
+                boolean inside = x + c >= 0 && x + c < planeWidth && y + r >= 0 && y + r < planeHeight;
+                tile[tileOffset + r * 4 + c] = inside ? values[planeOffset + (y + r) * planeWidth + x + c] : 0;
+            }
+        }
+    }
+
+    //Write the 2x2 tile whose first element is at (x, y) of a plane, skipping any part outside it
+    private static void writeTile(double[] tile, int tileOffset, double[] values, int planeOffset, int planeWidth, int planeHeight, int x, int y){
+        for(int r = 0; r < 2 && y + r < planeHeight; r++){
+            for(int c = 0; c < 2 && x + c < planeWidth; c++){
+                values[planeOffset + (y + r) * planeWidth + x + c] = tile[tileOffset + r * 2 + c];
+            }
+        }
+    }
+
+    //B^T d B, where B^T = [1 0 -1 0; 0 1 1 0; 0 -1 1 0; 0 1 0 -1]. The columns are transformed in place,
+    //then the rows into out, with each element of the tile step apart.
+    private static void transformInput(double[] d, int offset, double[] out, int outOffset, int step){
+        for(int c = offset; c < offset + 4; c++){
+            double d0 = d[c], d1 = d[4 + c], d2 = d[8 + c], d3 = d[12 + c];
+            d[c] = d0 - d2;
+            d[4 + c] = d1 + d2;
+            d[8 + c] = d2 - d1;
+            d[12 + c] = d1 - d3;
+        }
+        for(int r = 0; r < TILE; r += 4){
+            double d0 = d[offset + r], d1 = d[offset + r + 1], d2 = d[offset + r + 2], d3 = d[offset + r + 3];
+            out[outOffset + r * step] = d0 - d2;
+            out[outOffset + (r + 1) * step] = d1 + d2;
+            out[outOffset + (r + 2) * step] = d2 - d1;
+            out[outOffset + (r + 3) * step] = d1 - d3;
+        }
+    }
+
+    //G g G^T, where G = [1 0 0; 1/2 1/2 1/2; 1/2 -1/2 1/2; 0 0 1], for a 3x3 filter g stored row-major
+    private static void transformFilter(double[] g, double[] out){
+        for(int c = 0; c < 3; c++){
+            double g0 = g[c], g1 = g[3 + c], g2 = g[6 + c];
+            out[c] = g0;
+            out[4 + c] = (g0 + g1 + g2) / 2;
+            out[8 + c] = (g0 - g1 + g2) / 2;
+            out[12 + c] = g2;
+        }
+        for(int r = 0; r < TILE; r += 4){
+            double g0 = out[r], g1 = out[r + 1], g2 = out[r + 2];
+            out[r + 1] = (g0 + g1 + g2) / 2;
+            out[r + 2] = (g0 - g1 + g2) / 2;
+            out[r + 3] = g2;
+        }
+    }
+
+    //A^T m A, where A^T = [1 1 1 0; 0 1 -1 -1] and each element of m is step apart.
+    //The 2x2 result is written to the first 4 of 12 values of out, after the rest are used for the rows of A^T m.
+    private static void transformOutput(double[] m, int mOffset, int step, double[] out, int outOffset){
+        int r = outOffset + 4;
+        for(int c = 0; c < 4; c++){
+            double m0 = m[mOffset + c * step], m1 = m[mOffset + (4 + c) * step], m2 = m[mOffset + (8 + c) * step], m3 = m[mOffset + (12 + c) * step];
+            out[r + c] = m0 + m1 + m2;
+            out[r + 4 + c] = m1 - m2 - m3;
+        }
+
+        out[outOffset] = out[r] + out[r + 1] + out[r + 2];
+        out[outOffset + 1] = out[r + 1] - out[r + 2] - out[r + 3];
+        out[outOffset + 2] = out[r + 4] + out[r + 5] + out[r + 6];
+        out[outOffset + 3] = out[r + 5] - out[r + 6] - out[r + 7];
+    }
+}
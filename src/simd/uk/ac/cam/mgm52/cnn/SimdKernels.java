@@ -0,0 +1,135 @@
+package uk.ac.cam.mgm52.cnn;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**VectorKernels using the Vector API, at the widest vector size the CPU supports.
+ * This needs JDK 16+ with "--add-modules jdk.incubator.vector" at both compile time and run time, so it lives outside src/main/java
+ * and is only loaded reflectively by VectorKernels.
+ * Elementwise kernels match the scalar ones exactly. Reductions (dot, expSum) sum in a different order, so they may differ in the last few bits.*/
+final class SimdKernels implements VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        //Each lane keeps its own partial sum, which are only added together at the end
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            sums = sums.add(va.mul(vb));
+        }
+
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for(; i < length; i++){
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector.fromArray(SPECIES, y, yOffset + i).add(vx.mul(alpha)).intoArray(y, yOffset + i);
+        }
+
+        for(; i < length; i++){
+            y[yOffset + i] += x[xOffset + i] * alpha;
+        }
+    }
+
+    @Override
+    public void multiply(double[] a, double[] b, double[] out, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)).intoArray(out, i);
+        }
+
+        for(; i < length; i++){
+            out[i] = a[i] * b[i];
+        }
+    }
+
+    @Override
+    public int maxIndex(double[] a, int offset, int length) {
+        //Find the largest value with lane-wise maximums, then the first position holding it
+        DoubleVector maxes = DoubleVector.broadcast(SPECIES, a[offset]);
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for(; i < bound; i += SPECIES.length()){
+            maxes = maxes.max(DoubleVector.fromArray(SPECIES, a, offset + i));
+        }
+
+        double max = maxes.reduceLanes(VectorOperators.MAX);
+        for(; i < length; i++){
+            max = Math.max(max, a[offset + i]);
+        }
+
+        for(i = 0; i < bound; i += SPECIES.length()){
+            VectorMask<Double> found = DoubleVector.fromArray(SPECIES, a, offset + i).eq(max);
+            if(found.anyTrue()) return i + found.firstTrue();
+        }
+        for(; i < length; i++){
+            if(a[offset + i] == max) return i;
+        }
+
+        //Only reached if there is a NaN, which the scalar kernel skips over
+        return VectorKernels.scalar.maxIndex(a, offset, length);
+    }
+
+    @Override
+    public void relu(double[] in, double[] out, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector.fromArray(SPECIES, in, i).max(0).intoArray(out, i);
+        }
+
+        for(; i < length; i++){
+            out[i] = Math.max(in[i], 0);
+        }
+    }
+
+    @Override
+    public void reluGradients(double[] outputGrad, double[] input, double[] inputGrad, int length) {
+        DoubleVector zeroes = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            //Multiplying by a 0/1 factor rather than blending keeps NaN and infinite grads consistent with the scalar kernel
+            DoubleVector factors = zeroes.blend(1, DoubleVector.fromArray(SPECIES, input, i).compare(VectorOperators.GT, 0));
+            DoubleVector.fromArray(SPECIES, outputGrad, i).mul(factors).intoArray(inputGrad, i);
+        }
+
+        for(; i < length; i++){
+            inputGrad[i] = outputGrad[i] * (input[i] > 0 ? 1 : 0);
+        }
+    }
+
+    @Override
+    public double expSum(double[] in, double[] out, int offset, int length) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector exps = DoubleVector.fromArray(SPECIES, in, offset + i).lanewise(VectorOperators.EXP);
+            exps.intoArray(out, offset + i);
+            sums = sums.add(exps);
+        }
+
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for(; i < length; i++){
+            out[offset + i] = Math.exp(in[offset + i]);
+            sum += out[offset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "simd (" + SPECIES.length() + " doubles per vector)";
+    }
+}
@@ -51,4 +51,107 @@ public class ConvLayerTests {
 
         Assert.that(Arrays.equals(forwardResult.dimSizes, expectedOutputSizes), "Feed forward on conv layer giving unexpected dim sizes");
     }
+
+    @Test
+    public void convLayer_feedForward_matchesCrossCorrelationMap() {
+        Layer_Convolutional myConv = new Layer_Convolutional(new int[] {2, 2}, 4, new int[] {2, 3, 4});
+
+        double[] forwardResult = myConv.forwardProp(testTens).values;
+
+        //Each filter's map should be identical to applying crossCorrelationMap with that filter
+        Tensor expected = null;
+        for (Tensor.RegionsIterator i = myConv.filters.new RegionsIterator(myConv.filterDimSizes, new int[0]); i.hasNext(); ) {
+            Tensor newMap = Layer_Convolutional.crossCorrelationMap(testTens, i.next(), myConv.ccMapSize, new int[0]);
+            expected = (expected == null) ? newMap : expected.appendTensor(newMap, myConv.filters.dimSizes.length);
+        }
+
+        Assert.that(Arrays.equals(expected.values, forwardResult), "Feed forward on conv layer does not match crossCorrelationMap.");
+    }
+
+    @Test
+    public void convEngine_filterGradients_matchCrossCorrelationMap() {
+        Tensor input = TestableTensors.consecutiveValues(5, 4);
+        Tensor outputGrad = TestableTensors.consecutiveValues(4, 3, 2);
+        ConvolutionEngine engine = new ConvolutionEngine(input.dimSizes, new int[] {2, 2}, new int[] {4, 3});
+
+        double[] filterGrads = engine.filterGradients(engine.lower(input.values), outputGrad.values, 2);
+
+        //Deriv wrt each filter is the input cross-correlated with the matching slice of the output grad
+        Tensor expected = null;
+        for (Tensor.RegionsIterator i = outputGrad.new RegionsIterator(new int[] {4, 3}, new int[0]); i.hasNext(); ) {
+            Tensor newMap = Layer_Convolutional.crossCorrelationMap(input, i.next(), new int[] {2, 2}, new int[0]);
+            expected = (expected == null) ? newMap : expected.appendTensor(newMap, 3);
+        }
+
+        Assert.that(Arrays.equals(expected.values, filterGrads), "Conv engine filter gradients do not match crossCorrelationMap.");
+    }
+
+    @Test
+    public void convLayer_forwardPropBatch_matchesForwardProp() {
+        Layer_Convolutional myConv = new Layer_Convolutional(new int[] {2, 2}, 4, new int[] {2, 3, 4});
+        Tensor otherTens = testTens.randoms(-1, 1);
+
+        Tensor batchResult = myConv.forwardPropBatch(Tensor.stack(testTens, otherTens));
+
+        Assert.that(Arrays.equals(myConv.forwardProp(testTens).values, batchResult.getSlice(0).values)
+                && Arrays.equals(myConv.forwardProp(otherTens).values, batchResult.getSlice(1).values), "Batched feed forward on conv layer does not match feed forward on each sample.");
+    }
+
+    @Test
+    public void convLayer_backProp_inputGradientsMatchFiniteDifferences() {
+        Layer_Convolutional myConv = new Layer_Convolutional(new int[] {2, 2}, 4, new int[] {2, 3, 4});
+        Tensor outputGrad = new Tensor(myConv.outputDims).randoms(-1, 1);
+
+        //With loss = sum of outputGrad * output, the deriv of loss wrt the outputs is outputGrad
+        myConv.forwardProp(testTens);
+        double[] inputGrads = myConv.backProp(outputGrad, 0).values.clone();
+
+        //The output is linear in the input, so central differences are exact up to rounding
+        boolean close = true;
+        for(int i = 0; i < testTens.values.length; i++){
+            Tensor plus = new Tensor(testTens.dimSizes, testTens.values.clone());
+            Tensor minus = new Tensor(testTens.dimSizes, testTens.values.clone());
+            plus.values[i] += 0.5;
+            minus.values[i] -= 0.5;
+
+            double difference = myConv.forwardProp(plus).innerProduct(outputGrad) - myConv.forwardProp(minus).innerProduct(outputGrad);
+            close &= Math.abs(difference - inputGrads[i]) < 1e-9;
+        }
+
+        Assert.that(close, "Conv layer input gradients do not match finite differences.");
+    }
+
+    @Test
+    public void convLayer_winograd_matchesCrossCorrelationMap() {
+        //Odd sizes leave partial tiles at the edges, and filters spanning the third dim sum across it
+        int[][][] inputAndFilterDims = {{{7, 9}, {3, 3}}, {{6, 5, 3}, {3, 3, 1}}, {{6, 5, 3}, {3, 3, 2}}};
+
+        boolean matches = true;
+        for(int[][] dims : inputAndFilterDims){
+            Tensor input = new Tensor(dims[0]).randoms(-1, 1);
+            Layer_Convolutional winogradConv = new Layer_Convolutional(dims[1], 4, dims[0]);
+            winogradConv.setAlgorithm(ConvolutionAlgorithm.WINOGRAD);
+            Layer_Convolutional directConv = (Layer_Convolutional) winogradConv.shareParameters();
+            directConv.setAlgorithm(ConvolutionAlgorithm.DIRECT);
+            Tensor outputGrad = new Tensor(winogradConv.outputDims).randoms(-1, 1);
+
+            //The second pass checks that the filter transforms are refreshed after backprop updates the filters
+            for(int pass = 0; pass < 2; pass++){
+                double[] output = winogradConv.forwardProp(input).values;
+
+                int f = 0;
+                for (Tensor.RegionsIterator i = winogradConv.filters.new RegionsIterator(winogradConv.filterDimSizes, new int[0]); i.hasNext(); f++) {
+                    double[] expected = Layer_Convolutional.crossCorrelationMap(input, i.next(), winogradConv.ccMapSize, new int[0]).values;
+                    for(int j = 0; j < expected.length; j++) matches &= Math.abs(output[f * expected.length + j] - expected[j]) < 1e-9;
+                }
+
+                directConv.forwardProp(input);
+                double[] expectedGrads = directConv.backProp(outputGrad, 0).values.clone();
+                double[] inputGrads = winogradConv.backProp(outputGrad, 0.1).values;
+                for(int j = 0; j < expectedGrads.length; j++) matches &= Math.abs(inputGrads[j] - expectedGrads[j]) < 1e-9;
+            }
+        }
+
+        Assert.that(matches, "Winograd convolution does not match crossCorrelationMap and the direct input gradients.");
+    }
 }
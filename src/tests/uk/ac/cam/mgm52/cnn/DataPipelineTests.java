@@ -0,0 +1,47 @@
+package uk.ac.cam.mgm52.cnn;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sun.jvm.hotspot.utilities.Assert;
+
+@RunWith(JUnit4.class)
+public class DataPipelineTests {
+
+    //Sample i has every input value equal to i, and label {i}
+    private static Dataset numberedSamples(int count){
+        Tensor[] inputs = new Tensor[count];
+        Tensor[] labels = new Tensor[count];
+        for(int i = 0; i < count; i++){
+            inputs[i] = new Tensor(2, 3);
+            inputs[i].fill(i);
+            labels[i] = new Tensor(new int[] {1}, new double[] {i});
+        }
+        return Dataset.of(inputs, labels);
+    }
+
+    @Test
+    public void dataPipeline_deliversEverySampleOnce(){
+        int[] timesSeen = new int[10];
+        boolean allMatch = true;
+        int batches = 0;
+
+        //A batch size that does not divide the dataset, so that the final batch is smaller
+        try(DataPipeline pipeline = new DataPipeline(numberedSamples(10), 3, 2, 2)){
+            for(DataPipeline.Batch batch; (batch = pipeline.take()) != null; batches++){
+                allMatch &= batch.stackedInputs.dimSizes[2] == batch.size;
+
+                for(int b = 0; b < batch.size; b++){
+                    int sample = (int) batch.labels[b].values[0];
+                    timesSeen[sample]++;
+                    allMatch &= batch.inputs[b].get(1, 2) == sample && batch.stackedInputs.get(1, 2, b) == sample;
+                }
+                pipeline.recycle(batch);
+            }
+        }
+
+        for(int seen : timesSeen) allMatch &= seen == 1;
+
+        Assert.that(allMatch && batches == 4, "DataPipeline is not delivering each sample exactly once.");
+    }
+}
@@ -0,0 +1,52 @@
+package uk.ac.cam.mgm52.cnn;
+
+import org.junit.Test;
+import sun.jvm.hotspot.utilities.Assert;
+
+public class FullyConnectedLayerTests {
+
+    //7 outputs exercises the leftover rows of the 4-row register blocks, and 300 inputs spans several column blocks
+    Layer_FullyConnected myFull = new Layer_FullyConnected(7, new int[] {20, 15});
+    Tensor input = new Tensor(20, 15).randoms(-1, 1);
+
+    @Test
+    public void fullLayer_feedForward_matchesInnerProducts() {
+        double[] output = myFull.forwardProp(input).values;
+
+        boolean close = true;
+        for(int o = 0; o < 7; o++){
+            double expected = myFull.biases[o];
+            for(int i = 0; i < 300; i++) expected += myFull.weights.values[o * 300 + i] * input.values[i];
+
+            close &= Math.abs(output[o] - expected) < 1e-12;
+        }
+
+        Assert.that(close, "Feed forward on fully connected layer does not match the inner product of each output's weights with the input.");
+    }
+
+    @Test
+    public void fullLayer_backProp_matchesSeparateGradients() {
+        Tensor outputGrad = new Tensor(7).randoms(-1, 1);
+        double[] oldWeights = myFull.weights.values.clone();
+
+        myFull.forwardProp(input);
+        double[] inputGrad = myFull.backProp(outputGrad, 0.1).values;
+
+        //Input grads use the weights from before the update, which must then be moved by -learningRate * outputGrad * input^T
+        boolean close = true;
+        for(int i = 0; i < 300; i++){
+            double expected = 0;
+            for(int o = 0; o < 7; o++) expected += oldWeights[o * 300 + i] * outputGrad.values[o];
+
+            close &= Math.abs(inputGrad[i] - expected) < 1e-12;
+        }
+        for(int o = 0; o < 7; o++){
+            for(int i = 0; i < 300; i++){
+                double expected = oldWeights[o * 300 + i] - 0.1 * outputGrad.values[o] * input.values[i];
+                close &= Math.abs(myFull.weights.values[o * 300 + i] - expected) < 1e-12;
+            }
+        }
+
+        Assert.that(close, "Backprop on fully connected layer does not match separately calculated input gradients and weight update.");
+    }
+}
@@ -0,0 +1,103 @@
+package uk.ac.cam.mgm52.cnn;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sun.jvm.hotspot.utilities.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class IdxFileTests {
+
+    //Writes an IDX file of three 2x3 unsigned byte images, whose pixels count up from 0
+    private static File writeImages() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(16 + 18);
+        bytes.putInt(0x00000803).putInt(3).putInt(2).putInt(3);
+        for(int p = 0; p < 18; p++) bytes.put((byte) (p * 14));
+
+        File file = File.createTempFile("images", ".idx3");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.array());
+        return file;
+    }
+
+    //Writes an IDX file of the labels {2, 0, 1}
+    private static File writeLabels() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(8 + 3);
+        bytes.putInt(0x00000801).putInt(3).put((byte) 2).put((byte) 0).put((byte) 1);
+
+        File file = File.createTempFile("labels", ".idx1");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.array());
+        return file;
+    }
+
+    @Test
+    public void idxFile_parsesHeader() throws IOException {
+        IdxFile file = new IdxFile(writeImages().getPath());
+
+        Assert.that(file.size() == 3 && file.getType() == IdxFile.UNSIGNED_BYTE
+                && Arrays.equals(file.getSampleDims(), new int[] {3, 2}) && file.getSampleLength() == 6,
+                "IdxFile is not parsing the header correctly.");
+    }
+
+    @Test
+    public void idxFile_rejectsTruncatedHeader() throws IOException {
+        //Claims three dimensions, but ends partway through the second one's size
+        ByteBuffer bytes = ByteBuffer.allocate(10);
+        bytes.putInt(0x00000803).putInt(3).putShort((short) 2);
+        File file = File.createTempFile("truncated", ".idx3");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.array());
+
+        boolean rejected = false;
+        try {
+            new IdxFile(file.getPath());
+        } catch (IOException e) {
+            rejected = true;
+        }
+
+        Assert.that(rejected, "IdxFile must throw IOException for a truncated header.");
+    }
+
+    @Test
+    public void idxFile_decodesImagesLazily() throws IOException {
+        IdxFile file = new IdxFile(writeImages().getPath());
+
+        //Second image: pixels 6 to 11, each stored as p * 14
+        Tensor image = file.getGreyImage(1);
+        ByteBuffer raw = file.sampleBytes(1);
+
+        boolean allMatch = raw.remaining() == 6;
+        for(int p = 0; p < 6; p++){
+            int stored = (6 + p) * 14;
+            allMatch &= image.values[p] == (128 - stored) / 255.0 && (raw.get(p) & 0xFF) == stored;
+        }
+
+        Assert.that(allMatch && image.get(2, 1) == image.values[5], "IdxFile is not decoding the right image.");
+    }
+
+    @Test
+    public void byteDataset_matchesIdxDataset() throws IOException {
+        String images = writeImages().getPath(), labels = writeLabels().getPath();
+        Dataset lazy = new IdxDataset(images, labels);
+        Dataset compact = ByteDataset.load(images, labels);
+
+        boolean allMatch = compact.size() == 3 && Arrays.equals(compact.getInputDims(), lazy.getInputDims()) && Arrays.equals(compact.getLabelDims(), new int[] {3});
+        double[] lazyValues = new double[9], compactValues = new double[9];
+        for(int i = 0; i < 3; i++){
+            lazy.readInput(i, lazyValues, 0);
+            lazy.readLabel(i, lazyValues, 6);
+            compact.readInput(i, compactValues, 0);
+            compact.readLabel(i, compactValues, 6);
+            allMatch &= Arrays.equals(lazyValues, compactValues);
+        }
+
+        Assert.that(allMatch && compactValues[6 + 1] == 1, "ByteDataset is not reading the same samples as IdxDataset.");
+    }
+}
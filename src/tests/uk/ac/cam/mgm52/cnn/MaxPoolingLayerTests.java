@@ -0,0 +1,54 @@
+package uk.ac.cam.mgm52.cnn;
+
+import org.junit.Test;
+import sun.jvm.hotspot.utilities.Assert;
+
+public class MaxPoolingLayerTests {
+
+    //Odd sizes leave a row and column uncovered by 2x2 windows, and 3x3 windows with stride 2 overlap
+    private static final int width = 9, height = 7, channels = 3;
+
+    @Test
+    public void maxPooling_matchesReference() {
+        //Rounding to a few values makes ties, which must go to the first element of each window in Horner order
+        Tensor input = new Tensor(width, height, channels).randoms(0, 4);
+        for(int i = 0; i < input.values.length; i++) input.values[i] = Math.floor(input.values[i]);
+
+        //2x2 and 3x3 windows with stride 2 have their own kernels, and stride 1 takes the general path
+        int[][] sizesAndStrides = {{2, 2}, {3, 2}, {2, 1}};
+
+        boolean matches = true;
+        for(int[] sizeAndStride : sizesAndStrides){
+            int size = sizeAndStride[0], stride = sizeAndStride[1];
+            Layer_MaxPooling pool = new Layer_MaxPooling(new int[] {stride, stride}, new int[] {size, size}, new int[] {width, height, channels});
+            Tensor outputGrad = new Tensor(pool.getOutputDims()).randoms(-1, 1);
+
+            double[] output = pool.forwardProp(input).values;
+            double[] inputGrads = pool.backProp(outputGrad, 0).values;
+
+            double[] expectedGrads = new double[input.values.length];
+            int outWidth = pool.getOutputDims()[0], outHeight = pool.getOutputDims()[1];
+            for(int c = 0; c < channels; c++){
+                for(int y = 0; y < outHeight; y++){
+                    for(int x = 0; x < outWidth; x++){
+                        int max = -1;
+                        for(int wy = 0; wy < size; wy++){
+                            for(int wx = 0; wx < size; wx++){
+                                int i = (stride * x + wx) + (stride * y + wy) * width + c * width * height;
+                                if(max < 0 || input.values[i] > input.values[max]) max = i;
+                            }
+                        }
+
+                        int o = x + y * outWidth + c * outWidth * outHeight;
+                        matches &= output[o] == input.values[max];
+                        expectedGrads[max] += outputGrad.values[o];
+                    }
+                }
+            }
+
+            for(int i = 0; i < expectedGrads.length; i++) matches &= Math.abs(inputGrads[i] - expectedGrads[i]) < 1e-12;
+        }
+
+        Assert.that(matches, "Max pooling does not match the max and gradients of each window.");
+    }
+}
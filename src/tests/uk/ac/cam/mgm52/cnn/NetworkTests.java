@@ -0,0 +1,379 @@
+package uk.ac.cam.mgm52.cnn;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import sun.jvm.hotspot.utilities.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NetworkTests {
+
+    private Network testNetwork(){
+        Network net = new Network(12, 12);
+        net.addConv(new int[] {3, 3}, 4)
+                .addReLU()
+                .addMax(2, new int[] {2, 2})
+                .addFull(10)
+                .addSoftmax();
+        return net;
+    }
+
+    @Test
+    public void trainer_train_allocatesNothingPerSample(){
+        Network net = testNetwork();
+        Tensor input = TestableTensors.consecutiveValues(12, 12).product(0.01);
+        Tensor label = new Tensor(10);
+        label.values[3] = 1;
+
+        Trainer trainer = new Trainer(net, LossFunction.crossEntropy, new Tensor[] {input}, new Tensor[] {label}, 0, 0.001);
+
+        //Let the JIT compile the training step before measuring
+        for(int i = 0; i < 20000; i++) trainer.train(input, label);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        //The cost of measuring itself, which is subtracted from the result
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+
+        //Take the best of several windows, as a late JIT recompilation can occasionally land inside one
+        long allocated = Long.MAX_VALUE;
+        for(int window = 0; window < 5 && allocated > 0; window++){
+            before = threads.getThreadAllocatedBytes(threadId);
+            for(int i = 0; i < 1000; i++) trainer.train(input, label);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(threadId) - before - overhead);
+        }
+
+        Assert.that(allocated == 0, "Training allocated " + allocated + " bytes over 1000 samples.");
+    }
+
+    @Test
+    public void checkpoint_roundTripsBitExactly() throws IOException {
+        Network net = testNetwork();
+        Tensor input = TestableTensors.consecutiveValues(12, 12).product(0.01);
+        double[] expectedOutput = net.forwardProp(input).values.clone();
+
+        File file = File.createTempFile("network", ".cnn");
+        file.deleteOnExit();
+        net.save(file.getPath());
+        Network loaded = Network.load(file.getPath());
+
+        Tensor[] parameters = net.getParameters(), loadedParameters = loaded.getParameters();
+        boolean allMatch = loaded.layers.length == net.layers.length && Arrays.equals(loaded.getOutputDims(), net.getOutputDims())
+                && loadedParameters.length == parameters.length;
+        for(int p = 0; allMatch && p < parameters.length; p++){
+            allMatch = Arrays.equals(parameters[p].values, loadedParameters[p].values);
+        }
+
+        Assert.that(allMatch && Arrays.equals(loaded.forwardProp(input).values, expectedOutput), "Checkpoint is not restoring the network exactly.");
+    }
+
+    @Test
+    public void checkpoint_rejectsCorruptOrTruncatedFiles() throws IOException {
+        File file = File.createTempFile("network", ".cnn");
+        file.deleteOnExit();
+        Network net = testNetwork();
+        net.save(file.getPath());
+        byte[] saved = Files.readAllBytes(file.toPath());
+
+        //Cut off inside the header, cut off among the parameter blocks, and a layer count far larger than the file
+        byte[][] corrupt = {Arrays.copyOf(saved, 20), Arrays.copyOf(saved, saved.length / 2), saved.clone()};
+        int layerCountPosition = 4 * (3 + net.getInputDims().length);
+        ByteBuffer.wrap(corrupt[2]).order(ByteOrder.LITTLE_ENDIAN).putInt(layerCountPosition, Integer.MAX_VALUE);
+
+        boolean allRejected = true;
+        for(byte[] bytes : corrupt){
+            Files.write(file.toPath(), bytes);
+            boolean rejected = false;
+            try {
+                Network.load(file.getPath());
+            } catch(IOException e){
+                rejected = true;
+            }
+            allRejected &= rejected;
+        }
+
+        Assert.that(allRejected, "Checkpoint is not rejecting corrupt files with an IOException.");
+    }
+
+    @Test
+    public void microBatcher_matchesForwardProp() throws Exception {
+        Network net = testNetwork();
+        Tensor[] inputs = new Tensor[5];
+        double[][] expected = new double[inputs.length][];
+        for(int i = 0; i < inputs.length; i++){
+            inputs[i] = TestableTensors.consecutiveValues(12, 12).product(0.01 * (i + 1));
+            expected[i] = net.forwardProp(inputs[i]).values.clone();
+        }
+
+        //A long wait, so that all inputs are coalesced into one batch
+        List<CompletableFuture<double[]>> outputs = new ArrayList<>();
+        try(MicroBatcher batcher = new MicroBatcher(net, inputs.length, 1_000_000)){
+            for(Tensor input : inputs) outputs.add(batcher.submit(input.values));
+
+            boolean allMatch = true;
+            for(int i = 0; i < inputs.length; i++){
+                double[] output = outputs.get(i).get();
+                for(int o = 0; o < output.length; o++) allMatch &= Math.abs(output[o] - expected[i][o]) < 1e-12;
+            }
+
+            Assert.that(allMatch && batcher.getBatchSizeCounts()[inputs.length] == 1, "MicroBatcher is not returning each input's own output.");
+        }
+    }
+
+    @Test
+    public void network_infer_matchesForwardPropAcrossThreads() throws InterruptedException {
+        Network net = testNetwork();
+        Tensor[] inputs = new Tensor[4];
+        double[][] expected = new double[inputs.length][];
+        for(int i = 0; i < inputs.length; i++){
+            inputs[i] = TestableTensors.consecutiveValues(12, 12).product(0.01 * (i + 1));
+            expected[i] = net.forwardProp(inputs[i]).values.clone();
+        }
+
+        //Each thread infers its own input repeatedly, so any shared scratch space would mix up their outputs
+        AtomicBoolean allMatch = new AtomicBoolean(true);
+        Thread[] threads = new Thread[inputs.length];
+        for(int t = 0; t < threads.length; t++){
+            int i = t;
+            threads[t] = new Thread(() -> {
+                for(int repeat = 0; repeat < 200; repeat++){
+                    if(!Arrays.equals(net.infer(inputs[i]).values, expected[i])) allMatch.set(false);
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t : threads) t.join();
+
+        Assert.that(allMatch.get(), "Network infer is not thread safe.");
+    }
+
+    @Test
+    public void network_inferBatch_matchesInferAndKeepsNoState(){
+        Network net = testNetwork();
+        Network untouched = net.replicate();
+        Tensor trainInputs = Tensor.stack(TestableTensors.consecutiveValues(12, 12).product(0.01), new Tensor(12, 12).randoms(-1, 1));
+        Tensor[] inputs = {new Tensor(12, 12).randoms(-1, 1), new Tensor(12, 12).randoms(-1, 1), new Tensor(12, 12).randoms(-1, 1)};
+        Tensor outputGrads = new Tensor(10, 2).randoms(-1, 1);
+        double[][] expected = new double[inputs.length][];
+        for(int b = 0; b < inputs.length; b++) expected[b] = net.infer(inputs[b]).values;
+
+        //Inferring between the forward and backward pass must not change what the backward pass sees
+        net.forwardPropBatch(trainInputs);
+        Tensor outputs = net.inferBatch(Tensor.stack(inputs));
+        net.backPropBatch(outputGrads, 0.01);
+        untouched.forwardPropBatch(trainInputs);
+        untouched.backPropBatch(outputGrads, 0.01);
+
+        boolean matches = true;
+        for(int b = 0; b < inputs.length; b++) matches &= Arrays.equals(outputs.getSlice(b).values, expected[b]);
+
+        Tensor[] parameters = net.getParameters();
+        Tensor[] untouchedParameters = untouched.getParameters();
+        for(int p = 0; p < parameters.length; p++) matches &= Arrays.equals(parameters[p].values, untouchedParameters[p].values);
+
+        Assert.that(matches, "Batched inference does not match infer, or disturbs the network's training state.");
+    }
+
+    @Test
+    public void network_profiling_recordsEveryLayer(){
+        Network net = testNetwork();
+        Tensor input = TestableTensors.consecutiveValues(12, 12).product(0.01);
+        Tensor label = new Tensor(10);
+        label.values[3] = 1;
+        Trainer trainer = new Trainer(net, LossFunction.crossEntropy, new Tensor[] {input}, new Tensor[] {label}, 0, 0.001);
+
+        boolean disabledByDefault = net.getProfiler() == null;
+        net.setProfiling(true);
+        for(int i = 0; i < 3; i++) trainer.train(input, label);
+
+        LayerProfiler profiler = net.getProfiler();
+        boolean allRecorded = true;
+        for(int l = 0; l < net.layers.length; l++){
+            allRecorded &= profiler.getCalls(l, LayerProfiler.FORWARD) == 3 && profiler.getCalls(l, LayerProfiler.BACKWARD) == 3
+                    && profiler.getNanos(l, LayerProfiler.FORWARD) > 0 && profiler.getNanos(l, LayerProfiler.BACKWARD) > 0;
+        }
+
+        Assert.that(disabledByDefault && allRecorded && profiler.toJson().contains("\"type\":\"Layer_Convolutional\""), "Network profiling is not recording every layer.");
+    }
+
+    @Test
+    public void trainingEvents_recordedByFlightRecorder() throws IOException {
+        Network net = testNetwork();
+        Tensor input = TestableTensors.consecutiveValues(12, 12).product(0.01);
+        Tensor label = new Tensor(10);
+        label.values[3] = 1;
+        Trainer trainer = new Trainer(net, LossFunction.crossEntropy, new Tensor[] {input}, new Tensor[] {label}, 0, 0.001);
+
+        File file = File.createTempFile("training", ".jfr");
+        file.deleteOnExit();
+        try(Recording recording = new Recording()){
+            recording.enable("uk.ac.cam.mgm52.cnn.*");
+            recording.start();
+            trainer.epoch();
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        List<String> seen = new ArrayList<>();
+        for(RecordedEvent event : RecordingFile.readAllEvents(file.toPath())){
+            String name = event.getEventType().getName();
+            if(name.equals("uk.ac.cam.mgm52.cnn.LayerPass")) name += " " + event.getClass("layerType").getName() + " " + event.getString("direction");
+            if(name.equals("uk.ac.cam.mgm52.cnn.Epoch") && event.getInt("samples") != 1) continue;
+            seen.add(name);
+        }
+
+        Assert.that(seen.contains("uk.ac.cam.mgm52.cnn.Epoch") && seen.contains("uk.ac.cam.mgm52.cnn.BatchDecode") && seen.contains("uk.ac.cam.mgm52.cnn.WeightUpdate")
+                && seen.contains("uk.ac.cam.mgm52.cnn.LayerPass uk.ac.cam.mgm52.cnn.Layer_Convolutional forward")
+                && seen.contains("uk.ac.cam.mgm52.cnn.LayerPass uk.ac.cam.mgm52.cnn.Layer_FullyConnected backward"), "Training events were not recorded: " + seen);
+    }
+
+    @Test
+    public void fusedPlan_trainsLikeSeparateLayers(){
+        //Fuses conv + ReLU + max pooling, then conv + ReLU and fully connected + ReLU
+        Network[] nets = {testNetwork(), new Network(12, 12).addConv(new int[] {3, 3}, 4).addReLU().addFull(6).addReLU().addFull(10).addSoftmax()};
+        String[] expectedSteps = {"fused Layer_Convolutional + Layer_ReluACT + Layer_MaxPooling", "fused Layer_FullyConnected + Layer_ReluACT"};
+
+        Tensor[] inputs = {TestableTensors.consecutiveValues(12, 12).product(0.01), new Tensor(12, 12).randoms(-1, 1)};
+        Tensor[] labels = {new Tensor(10), new Tensor(10)};
+        labels[0].values[3] = 1;
+        labels[1].values[7] = 1;
+
+        boolean matches = true;
+        for(int n = 0; n < nets.length; n++){
+            Network fused = nets[n];
+            Network separate = fused.replicate();
+            separate.setFusion(false);
+
+            Trainer fusedTrainer = new Trainer(fused, LossFunction.crossEntropy, inputs, labels, 0, 0.01);
+            Trainer separateTrainer = new Trainer(separate, LossFunction.crossEntropy, inputs, labels, 0, 0.01);
+            matches &= fused.describePlan().contains(expectedSteps[n]) && !separate.describePlan().contains("fused");
+
+            //Single samples, then a batch of both
+            for(int i = 0; i < 4; i++){
+                double[] fusedOutput = fusedTrainer.train(inputs[i % 2], labels[i % 2]);
+                double[] separateOutput = separateTrainer.train(inputs[i % 2], labels[i % 2]);
+                for(int o = 0; o < 10; o++) matches &= Math.abs(fusedOutput[o] - separateOutput[o]) < 1e-12;
+            }
+            double[][] fusedOutputs = new double[2][];
+            double[][] separateOutputs = new double[2][];
+            fusedTrainer.trainBatch(fused, Tensor.stack(inputs), labels, 0, 2, 0.01, fusedOutputs);
+            separateTrainer.trainBatch(separate, Tensor.stack(inputs), labels, 0, 2, 0.01, separateOutputs);
+            for(int b = 0; b < 2; b++){
+                for(int o = 0; o < 10; o++) matches &= Math.abs(fusedOutputs[b][o] - separateOutputs[b][o]) < 1e-12;
+            }
+
+            Tensor[] fusedParameters = fused.getParameters();
+            Tensor[] separateParameters = separate.getParameters();
+            for(int p = 0; p < fusedParameters.length; p++){
+                for(int i = 0; i < fusedParameters[p].values.length; i++) matches &= Math.abs(fusedParameters[p].values[i] - separateParameters[p].values[i]) < 1e-12;
+            }
+        }
+
+        Assert.that(matches, "Training with fused layers does not match training the same layers separately.");
+    }
+
+    @Test
+    public void dataParallelTrainer_stepsLikeOneMeanGradientStep(){
+        Network parallel = testNetwork();
+        Network serial = parallel.replicate();
+
+        Tensor[] inputs = new Tensor[8];
+        Tensor[] labels = new Tensor[inputs.length];
+        int[] order = new int[inputs.length];
+        for(int i = 0; i < inputs.length; i++){
+            inputs[i] = new Tensor(12, 12).randoms(-1, 1);
+            labels[i] = new Tensor(10);
+            labels[i].values[i] = 1;
+            order[i] = i;
+        }
+
+        //Three workers, so the batch splits into uneven shards of 3, 3 and 2
+        DataParallelTrainer parallelTrainer = new DataParallelTrainer(parallel, LossFunction.crossEntropy, inputs, labels, 0, 0.01, inputs.length, 3);
+        Trainer serialTrainer = new Trainer(serial, LossFunction.crossEntropy, inputs, labels, 0, 0.01, inputs.length);
+
+        double[][] parallelOutputs;
+        try(DataPipeline pipeline = new DataPipeline(parallelTrainer.data, order, inputs.length, 1, 0)){
+            parallelOutputs = parallelTrainer.trainBatch(pipeline.take());
+        }
+        parallelTrainer.shutdown();
+        double[][] serialOutputs = new double[inputs.length][];
+        serialTrainer.trainBatch(serial, Tensor.stack(inputs), labels, 0, inputs.length, 0.01, serialOutputs);
+
+        boolean matches = true;
+        for(int b = 0; b < inputs.length; b++) matches &= Arrays.equals(parallelOutputs[b], serialOutputs[b]);
+
+        Tensor[] parallelParameters = parallel.getParameters();
+        Tensor[] serialParameters = serial.getParameters();
+        for(int p = 0; p < parallelParameters.length; p++){
+            for(int i = 0; i < parallelParameters[p].values.length; i++) matches &= Math.abs(parallelParameters[p].values[i] - serialParameters[p].values[i]) < 1e-12;
+        }
+
+        Assert.that(matches, "Reducing the replicas' steps does not match one step on the mean gradient of the whole batch.");
+    }
+
+    @Test
+    public void sharedParameters_updateMasterInPlaceButKeepOwnState(){
+        Network net = testNetwork();
+        Network view = net.shareParameters();
+        Tensor[] masterParameters = net.getParameters();
+        double[][] before = new double[masterParameters.length][];
+        for(int p = 0; p < masterParameters.length; p++) before[p] = masterParameters[p].values.clone();
+
+        //The view's forward pass must not overwrite the output buffer of the master's
+        Tensor masterOutput = net.forwardProp(TestableTensors.consecutiveValues(12, 12).product(0.01));
+        double[] expectedOutput = masterOutput.values.clone();
+        view.forwardProp(new Tensor(12, 12).randoms(-1, 1));
+        view.backProp(new Tensor(10).randoms(-1, 1), 0.1);
+        boolean ownState = Arrays.equals(masterOutput.values, expectedOutput);
+
+        //Whereas its step must land in the master's own parameter arrays
+        boolean sharesParameters = true;
+        boolean stepped = false;
+        Tensor[] viewParameters = view.getParameters();
+        for(int p = 0; p < masterParameters.length; p++){
+            sharesParameters &= viewParameters[p].values == masterParameters[p].values;
+            stepped |= !Arrays.equals(masterParameters[p].values, before[p]);
+        }
+
+        Assert.that(ownState && sharesParameters && stepped, "Views from shareParameters must update the master's parameters in place and keep their own activations.");
+    }
+
+    @Test
+    public void hogwildTrainer_reducesLoss(){
+        Network net = testNetwork();
+        Tensor[] inputs = new Tensor[12];
+        Tensor[] labels = new Tensor[inputs.length];
+        for(int i = 0; i < inputs.length; i++){
+            inputs[i] = new Tensor(12, 12).randoms(-1, 1);
+            labels[i] = new Tensor(10);
+            labels[i].values[i % 10] = 1;
+        }
+
+        double lossBefore = meanLoss(net, inputs, labels);
+        HogwildTrainer trainer = new HogwildTrainer(net, LossFunction.crossEntropy, inputs, labels, 0, 0.05, 1, 4);
+        for(int e = 0; e < 10; e++) trainer.epoch();
+        double lossAfter = meanLoss(net, inputs, labels);
+
+        Assert.that(lossAfter < lossBefore / 2, "Hogwild training with 4 threads did not reduce the loss: " + lossBefore + " to " + lossAfter);
+    }
+
+    private double meanLoss(Network net, Tensor[] inputs, Tensor[] labels){
+        double loss = 0;
+        for(int i = 0; i < inputs.length; i++) loss += ArrayUtils.sum(LossFunction.crossEntropy.calculateLoss(labels[i].values, net.infer(inputs[i]).values).values);
+        return loss / inputs.length;
+    }
+}
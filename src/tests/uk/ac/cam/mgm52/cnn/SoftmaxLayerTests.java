@@ -0,0 +1,116 @@
+package uk.ac.cam.mgm52.cnn;
+
+import org.junit.Test;
+import sun.jvm.hotspot.utilities.Assert;
+
+import java.util.Arrays;
+
+public class SoftmaxLayerTests {
+
+    //Categorical cross entropy of softmax(logits), calculated separately using log-sum-exp
+    private static double loss(double[] logits, int label){
+        double max = Double.NEGATIVE_INFINITY;
+        for(double l : logits) max = Math.max(max, l);
+        double expSum = 0;
+        for(double l : logits) expSum += Math.exp(l - max);
+
+        return max + Math.log(expSum) - logits[label];
+    }
+
+    @Test
+    public void softmaxCrossEntropy_gradientMatchesFiniteDifferences() {
+        //Logits this large overflow e^x unless the max is subtracted first
+        Tensor logits = new Tensor(10).randoms(-5, 5);
+        for(int i = 0; i < 10; i++) logits.values[i] += 800;
+        Tensor label = new Tensor(10);
+        label.values[6] = 1;
+
+        Layer_SoftmaxCrossEntropy softmax = new Layer_SoftmaxCrossEntropy(new int[] {10});
+        double[] probabilities = softmax.forwardProp(logits).values;
+        double[] lossDerivs = new double[10];
+        Layer_SoftmaxCrossEntropy.lossDerivative(label.values, probabilities, lossDerivs);
+        double[] inputGrads = softmax.backProp(new Tensor(new int[] {10}, lossDerivs), 0).values;
+
+        double h = 1e-5;
+        boolean matches = Math.abs(softmax.loss(label.values, 0) - loss(logits.values, 6)) < 1e-9;
+        for(int i = 0; i < 10; i++){
+            double[] plus = logits.values.clone();
+            double[] minus = logits.values.clone();
+            plus[i] += h;
+            minus[i] -= h;
+
+            double numeric = (loss(plus, 6) - loss(minus, 6)) / (2 * h);
+            matches &= Math.abs(inputGrads[i] - numeric) < 1e-6;
+        }
+
+        Assert.that(matches, "Fused softmax and cross entropy do not match the loss and gradient of softmax followed by cross entropy.");
+    }
+
+    @Test
+    public void softmaxCrossEntropy_fusedOnlyWhenAsked() {
+        Tensor[] inputs = {new Tensor(4).randoms(-1, 1)};
+        Tensor[] labels = {new Tensor(3)};
+        labels[0].values[1] = 1;
+        Network net = new Network(4).addFull(3).addSoftmax();
+
+        //Building a trainer must not change the network
+        new Trainer(net, LossFunction.crossEntropy, inputs, labels, 0, 0.1);
+        boolean unchanged = !(net.layers[1] instanceof Layer_SoftmaxCrossEntropy);
+
+        //Once fused, cross entropy is trained by passing p - y straight to the logits, and no other loss is accepted
+        net.fuseSoftmaxCrossEntropy();
+        Network expected = net.replicate();
+        new Trainer(net, LossFunction.crossEntropy, inputs, labels, 0, 0.1).train(inputs[0], labels[0]);
+        boolean rejected = rejects(net, inputs, labels);
+
+        double[] lossDerivs = new double[3];
+        Layer_SoftmaxCrossEntropy.lossDerivative(labels[0].values, expected.forwardProp(inputs[0]).values, lossDerivs);
+        Tensor logitGrads = new Tensor(new int[] {3}, lossDerivs);
+        expected.layers[0].backProp(logitGrads, 0.1);
+
+        boolean matches = Arrays.equals(net.getParameters()[0].values, expected.getParameters()[0].values);
+
+        Assert.that(unchanged && rejected && matches && net.layers[1] instanceof Layer_SoftmaxCrossEntropy,
+                "Softmax is not fused with cross entropy only when asked, or a fused network is not trained with p - y.");
+    }
+
+    //Whether a trainer refuses to train net with a loss other than cross entropy
+    private static boolean rejects(Network net, Tensor[] inputs, Tensor[] labels){
+        LossFunction squaredError = new LossFunction() {
+            @Override
+            public Tensor calculateLoss(double[] expectedOutput, double[] actualOutput) {
+                double[] loss = new double[expectedOutput.length];
+                for(int i = 0; i < loss.length; i++) loss[i] = (actualOutput[i] - expectedOutput[i]) * (actualOutput[i] - expectedOutput[i]);
+                return new Tensor(new int[] {loss.length}, loss);
+            }
+
+            @Override
+            public Tensor calculateLossDerivative(double[] expectedOutput, double[] actualOutput) {
+                double[] derivs = new double[expectedOutput.length];
+                for(int i = 0; i < derivs.length; i++) derivs[i] = 2 * (actualOutput[i] - expectedOutput[i]);
+                return new Tensor(new int[] {derivs.length}, derivs);
+            }
+        };
+
+        try {
+            new Trainer(net, squaredError, inputs, labels, 0, 0.1);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void softmaxCrossEntropy_lossIsExactWhenProbabilityUnderflows() {
+        //The correct class's logit is far enough below the others that its probability is exactly 0
+        Tensor logits = new Tensor(new int[] {3}, new double[] {0, 1000, 0});
+        Tensor label = new Tensor(3);
+        label.values[0] = 1;
+
+        Layer_SoftmaxCrossEntropy softmax = new Layer_SoftmaxCrossEntropy(new int[] {3});
+        double[] probabilities = softmax.forwardProp(logits).values;
+        double loss = softmax.loss(label.values, 0);
+
+        Assert.that(probabilities[0] == 0 && Math.abs(loss - loss(logits.values, 0)) < 1e-9, "Softmax cross entropy loss is not exact when the probability of the correct class underflows: " + loss);
+    }
+}
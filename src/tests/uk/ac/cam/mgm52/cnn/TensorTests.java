@@ -8,6 +8,7 @@ import uk.ac.cam.mgm52.cnn.Tensor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.stream.IntStream;
 
 @RunWith(JUnit4.class)
@@ -30,6 +31,20 @@ public class TensorTests {
         Assert.that(testTensor.get(1, 2, 3) == 23, "Could not get correct value at coord (1, 2, 3) (last coord)");
     }
 
+    @Test
+    public void canGetCoord_RankSpecialized(){
+        Tensor fourDimTensor = TestableTensors.consecutiveValues(2, 3, 4, 2);
+
+        Assert.that(testTensor.get3(1, 2, 3) == 23 && testTensor.get2(1, 2) == 5 && fourDimTensor.get4(1, 2, 3, 1) == 47, "Could not get correct values using rank-specialized getters");
+    }
+
+    @Test
+    public void canSetCoord_RankSpecialized(){
+        testTensor.set3(1, 0, 2, -1);
+
+        Assert.that(testTensor.get(1, 0, 2) == -1 && testTensor.offset3(1, 0, 2) == testTensor.offset(new int[] {1, 0, 2}), "Could not set correct value using rank-specialized setter");
+    }
+
     @Test
     public void canGetCoord_Large(){
         Tensor largeTestTensor = TestableTensors.consecutiveValues(3, 5, 2, 3, 6 ,8, 2, 3);
@@ -73,6 +88,22 @@ public class TensorTests {
     }
 
 
+    @Test
+    public void coordCursor_stridesAndFlatIndices(){
+        //Every other coordinate along dimensions 0 and 2
+        int[][] allCoords = {{0, 1, 0}, {0, 2, 0}, {0, 1, 2}, {0, 2, 2}};
+
+        CoordUtils.CoordCursor cursor = new CoordUtils.CoordCursor(new int[] {0, 1, 0}, new int[] {1, 2, 3}, new int[] {2, 1, 2}, testTensor.strides);
+        ArrayList<int[]> allCursorCoords = new ArrayList<>();
+        boolean flatIndicesMatch = true;
+        while(cursor.advance()){
+            allCursorCoords.add(cursor.getCurrentCoords().clone());
+            flatIndicesMatch &= cursor.getFlatIndex() == testTensor.offset(cursor.getCurrentCoords());
+        }
+
+        Assert.that(Arrays.deepEquals(allCoords, allCursorCoords.toArray()) && flatIndicesMatch, "Coord cursor is not returning the correct coords and flat indices.");
+    }
+
     @Test
     public void regionsIterator_returnsRightvalues(){
         //Expected values
@@ -124,5 +155,102 @@ public class TensorTests {
         Assert.that(foundProd == 4324.0, "Tensor innerProduct is not returning expected values.");
     }
 
+    @Test
+    public void regionsIterator_nextView_matchesNext(){
+        Tensor.RegionsIterator copies = testTensor.new RegionsIterator(new int[] {2, 2}, new int[0], new int[] {1, 2, 1});
+        Tensor.RegionsIterator views = testTensor.new RegionsIterator(new int[] {2, 2}, new int[0], new int[] {1, 2, 1});
+
+        boolean allMatch = true;
+        while(copies.hasNext()){
+            Tensor copy = copies.next();
+            TensorView view = views.nextView();
+
+            allMatch &= Arrays.equals(copy.values, view.copy().values)
+                    && copy.innerProduct(copy) == view.innerProduct(copy)
+                    && copy.maxValueIndex() == view.maxValueIndex();
+        }
+
+        Assert.that(allMatch && !views.hasNext(), "Tensor region views do not match region copies.");
+    }
 
+    @Test
+    public void getRegionView_sharesValues(){
+        TensorView view = testTensor.getRegionView(new int[] {1, 1, 1}, new int[] {1, 2, 2});
+        view.set(new int[] {0, 1, 0}, -1);
+
+        Assert.that(testTensor.get(1, 2, 1) == -1 && view.getFlat(3) == 17.0, "Tensor getRegionView is not sharing the tensor's values.");
+    }
+
+    @Test
+    public void vectorKernels_activeMatchesScalar(){
+        //An odd length, so that both the vector loops and their remainders are exercised
+        Random rand = new Random(12);
+        double[] a = new double[37];
+        double[] b = new double[37];
+        for(int i = 0; i < a.length; i++){
+            a[i] = rand.nextGaussian();
+            b[i] = rand.nextGaussian();
+        }
+        //A tie, which should resolve to the first occurrence
+        a[30] = a[33] = 10;
+
+        VectorKernels scalar = VectorKernels.scalar, active = VectorKernels.active;
+        double[] expected = new double[a.length], found = new double[a.length];
+
+        boolean allMatch = Math.abs(scalar.dot(a, 1, b, 2, 35) - active.dot(a, 1, b, 2, 35)) < 1e-12
+                && scalar.maxIndex(a, 3, 34) == active.maxIndex(a, 3, 34)
+                && Math.abs(scalar.expSum(a, expected, 2, 30) - active.expSum(a, found, 2, 30)) < 1e-9;
+
+        scalar.relu(a, expected, a.length);
+        active.relu(a, found, a.length);
+        allMatch &= Arrays.equals(expected, found);
+
+        scalar.reluGradients(b, a, expected, a.length);
+        active.reluGradients(b, a, found, a.length);
+        allMatch &= Arrays.equals(expected, found);
+
+        expected = b.clone();
+        found = b.clone();
+        scalar.axpy(-0.3, a, 2, expected, 1, 34);
+        active.axpy(-0.3, a, 2, found, 1, 34);
+        allMatch &= Arrays.equals(expected, found);
+
+        scalar.multiply(a, b, expected, a.length);
+        active.multiply(a, b, found, a.length);
+        allMatch &= Arrays.equals(expected, found);
+
+        Assert.that(allMatch, "The " + active.name() + " kernels do not match the scalar kernels.");
+    }
+
+    @Test
+    public void inPlaceOperations_keepValuesArray(){
+        double[] originalValues = testTensor.values;
+        Tensor other = TestableTensors.consecutiveValues(2, 3, 4);
+
+        //x = 2x, then x = x + 0.5 * other, then x = x + other * other
+        testTensor.scale(2);
+        testTensor.axpy(0.5, other);
+        testTensor.fma(other, other);
+
+        Tensor copy = testTensor.zeroes();
+        testTensor.copyInto(copy);
+        other.fill(1);
+
+        Assert.that(testTensor.values == originalValues && copy.get(1, 2, 3) == 23 * 2.5 + 23 * 23 && other.get(1, 1, 1) == 1, "In-place tensor operations are not returning expected values.");
+    }
+
+    @Test
+    public void modCount_followsInPlaceUpdates(){
+        Tensor t = TestableTensors.consecutiveValues(2, 3, 4);
+        Tensor other = TestableTensors.consecutiveValues(2, 3, 4);
+
+        //Each change to values must move the count on, whether made by axpy or written directly, so that caches derived from values are rebuilt
+        int before = t.getModCount();
+        t.axpy(0.5, other);
+        int afterAxpy = t.getModCount();
+        t.values[5] = -1;
+        t.markModified();
+
+        Assert.that(afterAxpy != before && t.getModCount() != afterAxpy, "The modification count of a tensor is not following changes to its values.");
+    }
 }